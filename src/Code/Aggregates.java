@@ -0,0 +1,195 @@
+package Code;
+
+import java.util.Arrays;
+
+// Per column Fenwick trees over the computed values of a sheet, serving SUM and COUNT over a range of cells in
+// O(columns * log(height)^2) and updated in O(log(height)^2) when the value of a single cell changes.
+// A node of the sums is recomputed from the nodes below it rather than adjusted by the change, and a range only
+// adds the nodes within it: the sum of a range only depends on its current values, whatever the order of the
+// edits (no rounding error accumulates, and the values outside of the range never cancel out).
+// Besides the sum of the numeric values, each column counts its numeric cells, its cyclic cells and its
+// invalid cells, so a range can tell whether it holds an error without visiting its cells.
+// A column is split into blocks of rows with their own trees, allocated on the first contribution, and a tree
+// over the totals of the blocks; so the memory follows the populated part of the sheet (see ChunkedCellStore).
+class Aggregates {
+    private static final int IGNORED = 0, NUMBER = 1, CYCLE = 2, ERROR = 3; // What a cell contributes
+    private static final int BLOCK_BITS = 12; // 4096 rows per block
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    private final int blocks; // Number of blocks in a column
+    private final Column[] columns; // Allocated on first use
+
+    // The trees of one column
+    private final class Column {
+        final double[] sums = new double[blocks + 1]; // Fenwick tree of the sums of the blocks
+        final double[] totals = new double[blocks]; // The sum of each block
+        final int[][] counts = new int[ERROR + 1][blocks + 1]; // Fenwick trees of the counts of the blocks
+        final Block[] rows = new Block[blocks];
+    }
+
+    // The trees of a block of rows of a column
+    private static final class Block {
+        final double[] sums = new double[BLOCK_SIZE + 1]; // Fenwick tree of the numeric values
+        final int[][] counts = new int[ERROR + 1][]; // Fenwick trees of the number of cells of each kind
+        final double[] values = new double[BLOCK_SIZE]; // The value each cell currently contributes to sums
+        final byte[] kinds = new byte[BLOCK_SIZE]; // The kind each cell currently contributes to counts
+
+        Block() {
+            for (int kind = NUMBER; kind <= ERROR; kind++) {
+                counts[kind] = new int[BLOCK_SIZE + 1];
+            }
+        }
+    }
+
+    Aggregates(int width, int height) {
+        blocks = (height + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+        columns = new Column[width];
+    }
+
+    // Forget all the contributions (e.g., before a full evaluation of the sheet)
+    void clear() {
+        Arrays.fill(columns, null);
+    }
+
+    // Update the contribution of the cell (x, y) after its value (or type) was computed
+    void update(int x, int y, int type, double value) {
+        int kind = IGNORED;
+        if (type == Ex2Utils.NUMBER || type == Ex2Utils.FORM) {
+            kind = Double.isFinite(value) ? NUMBER : ERROR; // An infinite sum is treated as an invalid one
+        } else if (type == Ex2Utils.ERR_CYCLE_FORM) {
+            kind = CYCLE;
+        } else if (type == Ex2Utils.ERR_FORM_FORMAT) {
+            kind = ERROR;
+        }
+        double contribution = kind == NUMBER ? value : 0;
+
+        int b = y >>> BLOCK_BITS, row = y & (BLOCK_SIZE - 1);
+        Column column = columns[x];
+        Block block = column == null ? null : column.rows[b];
+        if (block == null) {
+            if (kind == IGNORED) return; // Nothing to add to an untouched block
+            if (column == null) column = columns[x] = new Column();
+            block = column.rows[b] = new Block();
+        }
+
+        int oldKind = block.kinds[row];
+        double oldContribution = block.values[row];
+        if (contribution != oldContribution) {
+            block.values[row] = contribution;
+            refresh(block.sums, block.values, row);
+            column.totals[b] = block.sums[BLOCK_SIZE]; // The root of the block covers all of its rows
+            refresh(column.sums, column.totals, b);
+        }
+        if (kind != oldKind) {
+            if (oldKind != IGNORED) {
+                add(block.counts[oldKind], row, -1);
+                add(column.counts[oldKind], b, -1);
+            }
+            if (kind != IGNORED) {
+                add(block.counts[kind], row, 1);
+                add(column.counts[kind], b, 1);
+            }
+            block.kinds[row] = (byte) kind;
+        }
+    }
+
+    // Recompute the nodes of a tree covering the i-th leaf after it changed, each one from the leaf it ends at and
+    // the nodes below it, in a fixed order
+    private static void refresh(double[] tree, double[] leaves, int i) {
+        for (i++; i < tree.length; i += i & -i) {
+            double sum = leaves[i - 1];
+            for (int child = 1; child < (i & -i); child <<= 1) {
+                sum += tree[i - child]; // Node i covers (i - lowbit(i), i]
+            }
+            tree[i] = sum;
+        }
+    }
+
+    private static void add(int[] tree, int i, int delta) {
+        for (i++; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    // Sum of the numeric values in the range [x1..x2] x [y1..y2]
+    double sum(int x1, int y1, int x2, int y2) {
+        double sum = 0;
+        for (int x = x1; x <= x2; x++) {
+            Column column = columns[x];
+            if (column == null) continue;
+            int b1 = y1 >>> BLOCK_BITS, b2 = y2 >>> BLOCK_BITS;
+            if (b1 == b2) {
+                sum += sum(column.rows[b1], y1 & (BLOCK_SIZE - 1), y2 & (BLOCK_SIZE - 1));
+            } else {
+                sum += sum(column.rows[b1], y1 & (BLOCK_SIZE - 1), BLOCK_SIZE - 1);
+                sum += sum(column.sums, column.totals, b1 + 1, b2); // The whole blocks in between
+                sum += sum(column.rows[b2], 0, y2 & (BLOCK_SIZE - 1));
+            }
+        }
+        return sum;
+    }
+
+    private static double sum(Block block, int from, int to) {
+        return block == null ? 0 : sum(block.sums, block.values, from, to + 1);
+    }
+
+    // Sum of the leaves [from, to) of a tree, adding only the nodes (or leaves) within the range
+    private static double sum(double[] tree, double[] leaves, int from, int to) {
+        double sum = 0;
+        while (to > from) {
+            int low = to & -to;
+            if (to - low >= from) {
+                sum += tree[to]; // Covers the leaves [to - low, to)
+                to -= low;
+            } else {
+                sum += leaves[--to];
+            }
+        }
+        return sum;
+    }
+
+    // Number of numeric cells in the range
+    int count(int x1, int y1, int x2, int y2) {
+        return count(NUMBER, x1, y1, x2, y2);
+    }
+
+    // Number of cyclic cells in the range
+    int cycles(int x1, int y1, int x2, int y2) {
+        return count(CYCLE, x1, y1, x2, y2);
+    }
+
+    // Number of invalid cells in the range
+    int errors(int x1, int y1, int x2, int y2) {
+        return count(ERROR, x1, y1, x2, y2);
+    }
+
+    private int count(int kind, int x1, int y1, int x2, int y2) {
+        int count = 0;
+        for (int x = x1; x <= x2; x++) {
+            Column column = columns[x];
+            if (column == null) continue;
+            int b1 = y1 >>> BLOCK_BITS, b2 = y2 >>> BLOCK_BITS;
+            if (b1 == b2) {
+                count += count(column.rows[b1], kind, y1 & (BLOCK_SIZE - 1), y2 & (BLOCK_SIZE - 1));
+            } else {
+                count += count(column.rows[b1], kind, y1 & (BLOCK_SIZE - 1), BLOCK_SIZE - 1);
+                count += prefix(column.counts[kind], b2) - prefix(column.counts[kind], b1 + 1);
+                count += count(column.rows[b2], kind, 0, y2 & (BLOCK_SIZE - 1));
+            }
+        }
+        return count;
+    }
+
+    private static int count(Block block, int kind, int from, int to) {
+        return block == null ? 0 : prefix(block.counts[kind], to + 1) - prefix(block.counts[kind], from);
+    }
+
+    // Sum of the first n entries of a tree
+    private static int prefix(int[] tree, int n) {
+        int sum = 0;
+        for (int i = n; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,263 @@
+package Code;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A Sheet recalculating its edits in the background, for a GUI which must keep drawing (see Ex2GUI).
+// set() only queues the new data, a single background thread applies the queued edits as a batch of the
+// Ex2Sheet, and the reads use its last snapshot (see Ex2Sheet.snapshot): the last known values, until the
+// recalculation is done. A newer edit cancels the recalculation in flight, which continues with the cells it
+// did not reach together with the new edits. isStale tells which cells may still change, and progress how far
+// the recalculation is.
+// In the lazy mode (see Ex2Sheet.setLazy), only the cells of the viewport (and the cells they depend on) are
+// evaluated after an edit, the other cells are evaluated in idle time, until the next edit.
+public class AsyncSheet implements Sheet {
+    private final Ex2Sheet sheet; // Only modified by the background thread
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AsyncSheet recalculation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Long, String> pending = new LinkedHashMap<>(); // The queued edits (by packed coordinates)
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // Whether a task applying the edits is queued
+    private final AtomicLong generation = new AtomicLong(); // Incremented by each edit
+    private long applied; // The generation of the edits being recalculated (on the background thread)
+    private volatile Set<Long> recalculating = Collections.emptySet(); // The cells of the recalculation in flight
+    private volatile int done, total; // The progress of the recalculation in flight
+    private volatile boolean lazy;
+    private volatile int[] viewport = {0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE}; // x1, y1, x2, y2
+    private static final int IDLE_STEP = 256; // Number of cells evaluated between two checks for new edits
+
+    public AsyncSheet(Ex2Sheet sheet) {
+        this.sheet = sheet;
+        sheet.snapshot(); // Start publishing the snapshots
+        sheet.setMonitor(new Ex2Sheet.Monitor() {
+            @Override
+            public void recalculating(long[] cells) {
+                Set<Long> stale = new HashSet<>(recalculating); // The cells left by a cancelled recalculation
+                for (long cell : cells) {
+                    stale.add(cell);
+                }
+                recalculating = stale;
+            }
+
+            @Override
+            public void progress(int done, int total) {
+                AsyncSheet.this.done = done;
+                AsyncSheet.this.total = total;
+            }
+
+            @Override
+            public boolean cancelled() {
+                return generation.get() != applied; // Superseded by a newer edit
+            }
+        });
+    }
+
+    public AsyncSheet(int x, int y) {
+        this(new Ex2Sheet(x, y));
+    }
+
+    // The sheet as of the last completed recalculation
+    private Sheet current() {
+        return sheet.snapshot();
+    }
+
+    // Queue the new data of a cell, reevaluated in the background
+    @Override
+    public void set(int x, int y, String c) {
+        if (!current().isIn(x, y)) return;
+        synchronized (pending) {
+            pending.put(((long) x << 32) | y, c);
+            generation.incrementAndGet();
+        }
+        schedule();
+    }
+
+    // Apply the queued edits in the background, unless it is already scheduled
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::applyPending);
+        }
+    }
+
+    // Enable (or disable) the lazy evaluation (see Ex2Sheet.setLazy), waiting for it
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+        run(() -> {
+            applyPending();
+            sheet.setLazy(lazy);
+            return null;
+        });
+    }
+
+    // The cells evaluated first in the lazy mode (e.g., the visible part of a GUI)
+    public void setViewport(int x1, int y1, int x2, int y2) {
+        viewport = new int[]{x1, y1, x2, y2};
+        if (lazy) schedule();
+    }
+
+    // Apply the queued edits as batches of the sheet (on the background thread)
+    private void applyPending() {
+        scheduled.set(false); // The edits queued from now on schedule another run (if this one misses them)
+        while (true) {
+            Map<Long, String> edits;
+            synchronized (pending) {
+                if (pending.isEmpty() && recalculating.isEmpty()) break; // Nor cells left by a cancelled recalculation
+                edits = new LinkedHashMap<>(pending);
+                pending.clear();
+                applied = generation.get();
+            }
+            sheet.beginBatch();
+            for (Map.Entry<Long, String> edit : edits.entrySet()) {
+                sheet.set(CellEntry.packedX(edit.getKey()), CellEntry.packedY(edit.getKey()), edit.getValue());
+            }
+            sheet.commitBatch(); // Cancelled (and continued by the next round) if more edits were queued
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    recalculating = Collections.emptySet(); // Published, nothing is stale
+                }
+            }
+        }
+        evaluateLazily();
+    }
+
+    // In the lazy mode, evaluate the viewport, then the other cells until the next edit (or viewport) schedules
+    // another run (on the background thread)
+    private void evaluateLazily() {
+        if (!lazy) return;
+        int[] visible = viewport;
+        sheet.evaluate(visible[0], visible[1], visible[2], visible[3]);
+        boolean left = true;
+        while (left && generation.get() == applied && viewport == visible) {
+            left = sheet.evaluateDeferred(IDLE_STEP);
+        }
+    }
+
+    // Whether the value of the cell may still change: it was edited, or depends on an edit, which is not
+    // recalculated yet (or, in the lazy mode, not evaluated yet)
+    public boolean isStale(int x, int y) {
+        long key = ((long) x << 32) | y;
+        synchronized (pending) {
+            if (pending.containsKey(key)) return true;
+        }
+        Cell cell = lazy ? current().get(x, y) : null;
+        return recalculating.contains(key) || (lazy && cell instanceof SCell && ((SCell) cell).isDirty());
+    }
+
+    // Whether edits are waiting or being recalculated
+    public boolean isBusy() {
+        synchronized (pending) {
+            if (!pending.isEmpty()) return true;
+        }
+        return !recalculating.isEmpty();
+    }
+
+    // The part of the recalculation in flight which is done, between 0 and 1 (1 when idle)
+    public double progress() {
+        int total = this.total;
+        return !isBusy() || total == 0 ? 1 : (double) done / total;
+    }
+
+    // Wait until all the edits queued so far are recalculated, so the following reads see them
+    public void flush() {
+        run(() -> {
+            applyPending();
+            return null;
+        });
+    }
+
+    // Run a task on the background thread, after the edits queued so far, and wait for it
+    private <T> T run(Callable<T> task) {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the recalculation", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return current().isIn(x, y);
+    }
+
+    @Override
+    public int width() {
+        return current().width();
+    }
+
+    @Override
+    public int height() {
+        return current().height();
+    }
+
+    // An immutable copy of the cell (see Ex2Sheet.snapshot), edit with set
+    @Override
+    public Cell get(int x, int y) {
+        return current().get(x, y);
+    }
+
+    @Override
+    public Cell get(String entry) {
+        return current().get(entry);
+    }
+
+    @Override
+    public String value(int x, int y) {
+        return current().value(x, y);
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        return current().eval(x, y);
+    }
+
+    // Apply the queued edits and evaluate the entire sheet, waiting for it
+    @Override
+    public void eval() {
+        run(() -> {
+            applyPending();
+            sheet.eval();
+            evaluateLazily();
+            return null;
+        });
+    }
+
+    @Override
+    public int[][] depth() {
+        return current().depth();
+    }
+
+    // Replace the content of the sheet (waiting for it), the edits queued so far are applied (and replaced) first
+    @Override
+    public void load(String fileName) throws IOException {
+        IOException failure = run(() -> {
+            applyPending();
+            try {
+                sheet.load(fileName);
+                evaluateLazily();
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        });
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        current().save(fileName);
+    }
+
+    // Stop the background thread, the queued edits are dropped
+    public void close() {
+        executor.shutdownNow();
+    }
+}
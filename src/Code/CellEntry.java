@@ -4,6 +4,10 @@ public class CellEntry implements Index2D {
     private int x; // X-coordinate
     private int y; // Y-coordinate
 
+    // Column names (A..Z, AA..ZZ, AAA...) computed so far, shared by all the entries
+    private static volatile String[] columnNames = new String[0];
+    private static final int MAX_CACHED_COLUMNS = 1 << 16; // Wider columns are named without caching
+
     // Constructor
     public CellEntry(int x, int y) {
         this.x = x;
@@ -27,8 +31,80 @@ public class CellEntry implements Index2D {
 
     @Override
     public String toString() {
-        // Convert the x-coordinate to a letter (A-Z) and combine it with y-coordinate
-        char column = (char) ('A' + x);
-        return column + Integer.toString(y);
+        // Convert the x-coordinate to a column name (A-Z, AA-ZZ, ...) and combine it with y-coordinate
+        return columnName(x) + y;
+    }
+
+    // The name of the x-th column: A..Z for 0..25, then AA..ZZ, AAA... (bijective base 26)
+    public static String columnName(int x) {
+        String[] names = columnNames;
+        if (x < names.length) {
+            return names[x];
+        }
+        if (x >= MAX_CACHED_COLUMNS) {
+            return computeColumnName(x);
+        }
+        synchronized (CellEntry.class) {
+            names = columnNames;
+            if (x >= names.length) {
+                String[] grown = new String[Math.min(MAX_CACHED_COLUMNS, Math.max(x + 1, Math.max(64, names.length * 2)))];
+                System.arraycopy(names, 0, grown, 0, names.length);
+                for (int i = names.length; i < grown.length; i++) {
+                    grown[i] = computeColumnName(i);
+                }
+                columnNames = grown;
+                names = grown;
+            }
+        }
+        return names[x];
+    }
+
+    private static String computeColumnName(int x) {
+        char[] letters = new char[8];
+        int pos = letters.length;
+        long n = x + 1L;
+        while (n > 0) {
+            n--;
+            letters[--pos] = (char) ('A' + n % 26);
+            n /= 26;
+        }
+        return new String(letters, pos, letters.length - pos);
+    }
+
+    // Parse a cell name (letters, case insensitive, followed by digits, e.g., "B3" or "aa12") in s[from, to)
+    // without allocating. Returns the coordinates packed as (x << 32) | y (see packedX, packedY),
+    // or -1 if it is not a valid cell name.
+    public static long parse(CharSequence s, int from, int to) {
+        int pos = from;
+        long column = 0;
+        while (pos < to) {
+            char c = s.charAt(pos);
+            int letter = c >= 'A' && c <= 'Z' ? c - 'A' : c >= 'a' && c <= 'z' ? c - 'a' : -1;
+            if (letter < 0) break;
+            column = column * 26 + letter + 1;
+            if (column > Integer.MAX_VALUE) return -1; // Too wide
+            pos++;
+        }
+        if (pos == from || pos == to) return -1; // No letters, or no digits
+
+        long row = 0;
+        while (pos < to) {
+            char c = s.charAt(pos);
+            if (c < '0' || c > '9') return -1;
+            row = row * 10 + (c - '0');
+            if (row > Integer.MAX_VALUE) return -1; // Too high
+            pos++;
+        }
+        return ((column - 1) << 32) | row;
+    }
+
+    // The x-coordinate of coordinates packed by parse
+    public static int packedX(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    // The y-coordinate of coordinates packed by parse
+    public static int packedY(long packed) {
+        return (int) packed;
     }
 }
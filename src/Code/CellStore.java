@@ -0,0 +1,42 @@
+package Code;
+
+// The cells of an Ex2Sheet. An empty cell may not be stored at all: get returns null for it, and only
+// getOrCreate allocates the cell (see ChunkedCellStore).
+interface CellStore {
+    // Number of columns
+    int width();
+
+    // Number of rows
+    int height();
+
+    // The cell at (x, y), or null if it was never written (an empty cell). Read only, see getForWrite.
+    SCell get(int x, int y);
+
+    // The cell at (x, y), or null if it was never written. Unlike get, the cell may be modified.
+    default SCell getForWrite(int x, int y) {
+        return get(x, y);
+    }
+
+    // The cell at (x, y), allocating an empty one if needed. The cell may be modified.
+    SCell getOrCreate(int x, int y);
+
+    // An immutable copy of the current cells (see ChunkedCellStore)
+    default CellStore snapshot() {
+        throw new UnsupportedOperationException("This storage does not support snapshots");
+    }
+
+    // An empty store of the same kind, with the given dimensions
+    CellStore newStore(int width, int height);
+
+    // Visit the stored cells of the range [x1..x2] x [y1..y2]
+    void forEach(int x1, int y1, int x2, int y2, CellVisitor visitor);
+
+    // Visit all the stored cells
+    default void forEach(CellVisitor visitor) {
+        forEach(0, 0, width() - 1, height() - 1, visitor);
+    }
+
+    interface CellVisitor {
+        void visit(int x, int y, SCell cell);
+    }
+}
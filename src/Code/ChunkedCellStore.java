@@ -0,0 +1,175 @@
+package Code;
+
+// A sparse CellStore: the sheet is split into fixed-size square chunks, and a chunk is allocated on the first
+// write to one of its cells. The memory grows with the written part of the sheet rather than with its size,
+// and the cells of a chunk are kept together (column by column) for the iterations.
+// The chunks are grouped in pages, so snapshot can share all of them: the store stamps what it allocates with
+// its current epoch, and after a snapshot (a new epoch) it copies a page, a chunk or a cell of an older epoch
+// before the first write to it.
+class ChunkedCellStore implements CellStore {
+    static final int CHUNK_BITS = 6; // 64 x 64 cells per chunk
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int PAGE_BITS = 8; // 256 chunks per page
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final int width, height;
+    private final int chunkRows; // Number of chunks in a column of chunks
+    private Page[] pages; // Chunk (cx, cy) is chunk c = cx * chunkRows + cy, in page c >> PAGE_BITS
+    private int pagesEpoch; // The epoch pages was allocated in
+    private int epoch; // The current epoch, what was allocated in an older one may be shared with a snapshot
+    private final boolean frozen; // A snapshot, which can not be written
+
+    private static final class Page {
+        final Chunk[] chunks; // null until written
+        final int epoch;
+
+        Page(Chunk[] chunks, int epoch) {
+            this.chunks = chunks;
+            this.epoch = epoch;
+        }
+    }
+
+    private static final class Chunk {
+        final SCell[] cells; // null until written
+        final int epoch;
+
+        Chunk(SCell[] cells, int epoch) {
+            this.cells = cells;
+            this.epoch = epoch;
+        }
+    }
+
+    ChunkedCellStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        chunkRows = (height + CHUNK_MASK) >>> CHUNK_BITS;
+        int chunkColumns = (width + CHUNK_MASK) >>> CHUNK_BITS;
+        pages = new Page[(Math.multiplyExact(chunkColumns, chunkRows) + PAGE_MASK) >>> PAGE_BITS];
+        frozen = false;
+    }
+
+    // A snapshot of the given store, sharing its pages
+    private ChunkedCellStore(ChunkedCellStore store) {
+        width = store.width;
+        height = store.height;
+        chunkRows = store.chunkRows;
+        pages = store.pages;
+        epoch = store.epoch;
+        frozen = true;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public CellStore newStore(int width, int height) {
+        return new ChunkedCellStore(width, height);
+    }
+
+    @Override
+    public SCell get(int x, int y) {
+        SCell[] cells = cells((x >>> CHUNK_BITS) * chunkRows + (y >>> CHUNK_BITS));
+        return cells == null ? null : cells[((x & CHUNK_MASK) << CHUNK_BITS) | (y & CHUNK_MASK)];
+    }
+
+    @Override
+    public SCell getForWrite(int x, int y) {
+        int c = (x >>> CHUNK_BITS) * chunkRows + (y >>> CHUNK_BITS);
+        int i = ((x & CHUNK_MASK) << CHUNK_BITS) | (y & CHUNK_MASK);
+        SCell[] cells = cells(c);
+        if (cells == null || cells[i] == null) {
+            return null;
+        }
+        return writable(writableChunk(c).cells, i);
+    }
+
+    @Override
+    public SCell getOrCreate(int x, int y) {
+        SCell[] cells = writableChunk((x >>> CHUNK_BITS) * chunkRows + (y >>> CHUNK_BITS)).cells;
+        int i = ((x & CHUNK_MASK) << CHUNK_BITS) | (y & CHUNK_MASK);
+        if (cells[i] == null) {
+            cells[i] = new SCell("");
+            cells[i].setEpoch(epoch);
+            return cells[i];
+        }
+        return writable(cells, i);
+    }
+
+    // The cells of the c-th chunk, null if it was never written
+    private SCell[] cells(int c) {
+        Page page = pages[c >>> PAGE_BITS];
+        Chunk chunk = page == null ? null : page.chunks[c & PAGE_MASK];
+        return chunk == null ? null : chunk.cells;
+    }
+
+    // The c-th chunk, allocated or copied from an older epoch if needed
+    private Chunk writableChunk(int c) {
+        if (frozen) {
+            throw new UnsupportedOperationException("A snapshot can not be modified");
+        }
+        if (pagesEpoch != epoch) {
+            pages = pages.clone();
+            pagesEpoch = epoch;
+        }
+        int p = c >>> PAGE_BITS;
+        if (pages[p] == null) {
+            pages[p] = new Page(new Chunk[1 << PAGE_BITS], epoch);
+        } else if (pages[p].epoch != epoch) {
+            pages[p] = new Page(pages[p].chunks.clone(), epoch);
+        }
+        Chunk[] chunks = pages[p].chunks;
+        Chunk chunk = chunks[c & PAGE_MASK];
+        if (chunk == null) {
+            chunk = chunks[c & PAGE_MASK] = new Chunk(new SCell[CHUNK_SIZE * CHUNK_SIZE], epoch);
+        } else if (chunk.epoch != epoch) {
+            chunk = chunks[c & PAGE_MASK] = new Chunk(chunk.cells.clone(), epoch);
+        }
+        return chunk;
+    }
+
+    // The i-th cell of a writable chunk, copied from an older epoch if needed
+    private SCell writable(SCell[] cells, int i) {
+        if (cells[i].getEpoch() != epoch) {
+            cells[i] = cells[i].copy();
+            cells[i].setEpoch(epoch);
+        }
+        return cells[i];
+    }
+
+    @Override
+    public CellStore snapshot() {
+        if (frozen) {
+            return this;
+        }
+        ChunkedCellStore snapshot = new ChunkedCellStore(this);
+        epoch++; // From now on, the current pages, chunks and cells belong to the snapshot
+        return snapshot;
+    }
+
+    @Override
+    public void forEach(int x1, int y1, int x2, int y2, CellVisitor visitor) {
+        for (int cx = x1 >>> CHUNK_BITS; cx <= x2 >>> CHUNK_BITS; cx++) {
+            for (int cy = y1 >>> CHUNK_BITS; cy <= y2 >>> CHUNK_BITS; cy++) {
+                SCell[] chunk = cells(cx * chunkRows + cy);
+                if (chunk == null) continue; // Nothing was written there
+                int fromX = Math.max(x1, cx << CHUNK_BITS), toX = Math.min(x2, (cx << CHUNK_BITS) + CHUNK_MASK);
+                int fromY = Math.max(y1, cy << CHUNK_BITS), toY = Math.min(y2, (cy << CHUNK_BITS) + CHUNK_MASK);
+                for (int x = fromX; x <= toX; x++) {
+                    int base = (x & CHUNK_MASK) << CHUNK_BITS;
+                    for (int y = fromY; y <= toY; y++) {
+                        SCell cell = chunk[base | (y & CHUNK_MASK)];
+                        if (cell != null) visitor.visit(x, y, cell);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package Code;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A Sheet which may be edited and read by many threads at once, over an Ex2Sheet.
+// An edit is queued in a concurrent map without locking, so the writers do not wait for each other (a later
+// edit of the same cell replaces the queued one). The writer which finds the recalculation free becomes its
+// coordinator: it merges the edits queued by all the writers into one batch of the sheet (so a cell depending
+// on several edits is reevaluated once), and keeps going while new edits arrive. With a pool (see
+// Ex2Sheet.setParallelism), the batch evaluates the independent cones of the merged edits in parallel.
+// The readers use the snapshots of the sheet (see Ex2Sheet.snapshot): they never wait, and see the edits once
+// their batch is committed (see flush).
+public class ConcurrentSheet implements Sheet {
+    private final Ex2Sheet sheet; // Only modified by the coordinator
+    private final ReentrantLock coordinator = new ReentrantLock();
+    private final ConcurrentMap<Long, String> pending = new ConcurrentHashMap<>(); // By packed coordinates
+
+    public ConcurrentSheet(Ex2Sheet sheet) {
+        this.sheet = sheet;
+        sheet.snapshot(); // Start publishing the snapshots
+    }
+
+    public ConcurrentSheet(int x, int y) {
+        this(new Ex2Sheet(x, y));
+    }
+
+    // The sheet as of the last committed edits
+    private Sheet current() {
+        return sheet.snapshot();
+    }
+
+    // Queue the new data of a cell, and apply the queued edits unless another thread is already doing it
+    @Override
+    public void set(int x, int y, String c) {
+        if (!current().isIn(x, y)) return;
+        pending.put(((long) x << 32) | y, c);
+        coordinate();
+    }
+
+    // Apply the queued edits, unless another thread is already doing it
+    private void coordinate() {
+        while (!pending.isEmpty() && coordinator.tryLock()) { // Recheck after unlocking: no edit is left behind
+            try {
+                applyPending();
+            } finally {
+                coordinator.unlock();
+            }
+        }
+    }
+
+    // Apply all the queued edits as batches of the sheet (with the coordinator lock)
+    private void applyPending() {
+        while (!pending.isEmpty()) {
+            sheet.beginBatch();
+            try {
+                for (Long key : pending.keySet()) {
+                    String data = pending.remove(key); // The latest data queued for the cell
+                    if (data != null) {
+                        sheet.set(CellEntry.packedX(key), CellEntry.packedY(key), data);
+                    }
+                }
+            } finally {
+                sheet.commitBatch(); // Reevaluates the merged edits, and publishes a snapshot
+            }
+        }
+    }
+
+    // Wait until all the edits queued so far are applied, so the following reads see them
+    public void flush() {
+        coordinator.lock();
+        try {
+            applyPending();
+        } finally {
+            coordinator.unlock();
+        }
+        coordinate(); // The edits queued while it was locked
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return current().isIn(x, y);
+    }
+
+    @Override
+    public int width() {
+        return current().width();
+    }
+
+    @Override
+    public int height() {
+        return current().height();
+    }
+
+    // An immutable copy of the cell (see Ex2Sheet.snapshot), edit with set
+    @Override
+    public Cell get(int x, int y) {
+        return current().get(x, y);
+    }
+
+    @Override
+    public Cell get(String entry) {
+        return current().get(entry);
+    }
+
+    @Override
+    public String value(int x, int y) {
+        return current().value(x, y);
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        return current().eval(x, y);
+    }
+
+    // Apply the queued edits and evaluate the entire sheet
+    @Override
+    public void eval() {
+        coordinator.lock();
+        try {
+            applyPending();
+            sheet.eval();
+        } finally {
+            coordinator.unlock();
+        }
+        coordinate(); // The edits queued while it was locked
+    }
+
+    @Override
+    public int[][] depth() {
+        return current().depth();
+    }
+
+    // Replace the content of the sheet, the edits queued so far are applied (and replaced) first
+    @Override
+    public void load(String fileName) throws IOException {
+        coordinator.lock();
+        try {
+            applyPending();
+            sheet.load(fileName);
+        } finally {
+            coordinator.unlock();
+        }
+        coordinate(); // The edits queued while it was locked
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        current().save(fileName);
+    }
+}
@@ -0,0 +1,45 @@
+package Code;
+
+import java.util.Collections;
+import java.util.List;
+
+// The outcome of the iterative calculation of one cycle of cells (see Ex2Sheet.setIterative)
+public class CycleReport {
+    private final List<Index2D> cells;
+    private final int iterations;
+    private final boolean converged;
+    private final double change;
+
+    CycleReport(List<Index2D> cells, int iterations, boolean converged, double change) {
+        this.cells = Collections.unmodifiableList(cells);
+        this.iterations = iterations;
+        this.converged = converged;
+        this.change = change;
+    }
+
+    // The cells of the cycle, in the order they were computed in each iteration
+    public List<Index2D> cells() {
+        return cells;
+    }
+
+    // Number of iterations (sweeps over the cells of the cycle) done
+    public int iterations() {
+        return iterations;
+    }
+
+    // Whether the values settled (changed by less than Ex2Utils.EPS in the last iteration) before the maximum
+    // number of iterations, and without an error
+    public boolean converged() {
+        return converged;
+    }
+
+    // The largest change of a value in the last iteration
+    public double change() {
+        return change;
+    }
+
+    @Override
+    public String toString() {
+        return cells + ": " + iterations + " iterations, " + (converged ? "converged" : "not converged");
+    }
+}
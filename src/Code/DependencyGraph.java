@@ -0,0 +1,389 @@
+package Code;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// The dependency graph of a sheet (or of all the sheets of a Workbook). Only the cells taking part in a reference
+// (formulas with references and the cells they reference) are nodes of the graph, numbered in their order of
+// appearance; see node and cell.
+// Each node keeps the nodes it references and the nodes referencing it. The depth of every node, the cyclic
+// nodes and an evaluation order are computed by a strongly connected components pass (Tarjan) in
+// O(nodes + references), and cached until the next structural change (a change of the references of a cell).
+class DependencyGraph {
+    private static final int[] NONE = new int[0];
+
+    private final LongIntMap nodes = new LongIntMap(); // The node of each cell (by packed coordinates, see Ex2Sheet.key)
+    private long[] cells = new long[16]; // The cell of each node
+    private int size; // Number of nodes
+    private int[][] references = new int[16][]; // The nodes referenced by each node
+    private int[][] dependents = new int[16][]; // The nodes referencing each node (only the first dependentCount are used)
+    private int[] dependentCount = new int[16];
+
+    // The cached analysis, null after a structural change
+    private int[] depth; // Depth of each node, ERR_CYCLE_FORM for cyclic nodes (and the nodes depending on them)
+    private int[] order; // All the nodes sorted by depth, the cyclic nodes last
+    private int[] levelStart; // Position in order of the first node of each depth, the last entry starts the cyclic nodes
+    private int[] component; // The strongly connected component of each node, numbered as they complete
+    private boolean[] inCycle; // Whether a node is part of a cycle (rather than only depending on one)
+
+    // Scratch space of the traversals (a node is marked if mark[node] == stamp)
+    private int[] mark = new int[16];
+    private int[] pending = new int[16];
+    private int stamp;
+
+    // Number of nodes in the graph
+    int size() {
+        return size;
+    }
+
+    // The node of a cell, or -1 if the cell is not part of any reference
+    int node(long cell) {
+        return nodes.get(cell);
+    }
+
+    // The cell of a node
+    long cell(int node) {
+        return cells[node];
+    }
+
+    // The nodes referenced by a node. Do not modify.
+    int[] references(int node) {
+        return references[node];
+    }
+
+    private int addNode(long cell) {
+        if (size == cells.length) {
+            int capacity = size * 2;
+            cells = Arrays.copyOf(cells, capacity);
+            references = Arrays.copyOf(references, capacity);
+            dependents = Arrays.copyOf(dependents, capacity);
+            dependentCount = Arrays.copyOf(dependentCount, capacity);
+            mark = Arrays.copyOf(mark, capacity);
+            pending = Arrays.copyOf(pending, capacity);
+        }
+        cells[size] = cell;
+        references[size] = NONE;
+        dependents[size] = NONE;
+        nodes.put(cell, size);
+        return size++;
+    }
+
+    // Replace the references of a cell (distinct cells), returns true if they changed
+    boolean setReferences(long cell, long[] refs) {
+        int node = nodes.get(cell);
+        if (node < 0) {
+            if (refs.length == 0) return false; // Still not part of any reference
+            node = addNode(cell);
+        }
+        int[] targets = new int[refs.length];
+        for (int i = 0; i < refs.length; i++) {
+            targets[i] = nodes.get(refs[i]);
+            if (targets[i] < 0) targets[i] = addNode(refs[i]);
+        }
+        if (Arrays.equals(references[node], targets)) {
+            return false; // A value edit, the structure (and the cached analysis) is unchanged
+        }
+        for (int ref : references[node]) {
+            removeDependent(ref, node);
+        }
+        references[node] = targets.length == 0 ? NONE : targets;
+        for (int ref : targets) {
+            addDependent(ref, node);
+        }
+        depth = null;
+        return true;
+    }
+
+    private void addDependent(int node, int dependent) {
+        if (dependentCount[node] == dependents[node].length) {
+            dependents[node] = Arrays.copyOf(dependents[node], Math.max(4, dependentCount[node] * 2));
+        }
+        dependents[node][dependentCount[node]++] = dependent;
+    }
+
+    private void removeDependent(int node, int dependent) {
+        int[] list = dependents[node];
+        for (int i = 0; i < dependentCount[node]; i++) {
+            if (list[i] == dependent) {
+                list[i] = list[--dependentCount[node]]; // The order of the dependents does not matter
+                return;
+            }
+        }
+    }
+
+    // The given nodes and all the nodes depending on them, directly or not
+    int[] dependentsClosure(int... nodes) {
+        int[] queue = new int[Math.max(16, nodes.length)];
+        int head = 0, tail = 0;
+        stamp++;
+        for (int node : nodes) {
+            if (mark[node] != stamp) { // The same node may be given more than once
+                mark[node] = stamp;
+                queue[tail++] = node;
+            }
+        }
+        while (head < tail) {
+            int current = queue[head++];
+            for (int i = 0; i < dependentCount[current]; i++) {
+                int user = dependents[current][i];
+                if (mark[user] != stamp) {
+                    mark[user] = stamp;
+                    if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+                    queue[tail++] = user;
+                }
+            }
+        }
+        return Arrays.copyOf(queue, tail);
+    }
+
+    // The given node and all the nodes it references, directly or not, through nodes accepted by the filter
+    int[] referencesClosure(int node, IntPredicate filter) {
+        int[] queue = new int[16];
+        int head = 0, tail = 0;
+        stamp++;
+        mark[node] = stamp;
+        queue[tail++] = node;
+        while (head < tail) {
+            int current = queue[head++];
+            for (int ref : references[current]) {
+                if (mark[ref] != stamp && filter.test(ref)) {
+                    mark[ref] = stamp;
+                    if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+                    queue[tail++] = ref;
+                }
+            }
+        }
+        return Arrays.copyOf(queue, tail);
+    }
+
+    // Split the given (distinct) nodes into the groups connected by the references among them (union-find). For
+    // the dependents closure of several edited nodes, each group is the union of the overlapping cones of the
+    // edits: the groups never reference each other, so they can be evaluated independently.
+    int[][] cones(int[] nodes) {
+        stamp++;
+        int[] parent = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            mark[nodes[i]] = stamp;
+            pending[nodes[i]] = i; // The position of the node
+            parent[i] = i;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            for (int ref : references[nodes[i]]) {
+                if (mark[ref] == stamp) {
+                    parent[root(parent, i)] = root(parent, pending[ref]);
+                }
+            }
+        }
+
+        int[] size = new int[nodes.length];
+        int count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (size[root(parent, i)]++ == 0) count++;
+        }
+        int[][] cones = new int[count][];
+        int[] cone = new int[nodes.length]; // The cone of each root
+        count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (parent[i] == i) {
+                cone[i] = count;
+                cones[count++] = new int[size[i]];
+                size[i] = 0;
+            }
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            int r = root(parent, i);
+            cones[cone[r]][size[r]++] = nodes[i];
+        }
+        return cones;
+    }
+
+    // The root of the i-th element of a union-find forest, halving the path to it
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    // Sort the given (distinct) nodes so each one comes after the given nodes it references (Kahn's algorithm
+    // restricted to the given nodes). Returns how many nodes were sorted, the nodes after them are cyclic
+    // (or depend on a cycle) within the given nodes.
+    int sort(int[] nodes) {
+        stamp++;
+        for (int node : nodes) {
+            mark[node] = stamp;
+        }
+        int[] sorted = new int[nodes.length];
+        int head = 0, tail = 0;
+        for (int node : nodes) {
+            int count = 0;
+            for (int ref : references[node]) {
+                if (mark[ref] == stamp) count++;
+            }
+            pending[node] = count;
+            if (count == 0) sorted[tail++] = node;
+        }
+        while (head < tail) {
+            int current = sorted[head++];
+            for (int i = 0; i < dependentCount[current]; i++) {
+                int user = dependents[current][i];
+                if (mark[user] == stamp && --pending[user] == 0) {
+                    sorted[tail++] = user; // All of its references were sorted
+                }
+            }
+        }
+
+        int done = tail;
+        for (int node : nodes) {
+            if (pending[node] > 0) sorted[tail++] = node; // Left over: cyclic
+        }
+        System.arraycopy(sorted, 0, nodes, 0, nodes.length);
+        return done;
+    }
+
+    // Depth of a node (see Sheet.depth)
+    int depth(int node) {
+        analyze();
+        return depth[node];
+    }
+
+    // Number of depth levels (the depths are 0 .. levels()-1)
+    int levels() {
+        analyze();
+        return levelStart.length - 1;
+    }
+
+    // All the nodes sorted by depth: the nodes of depth d are at [levelStart(d), levelStart(d+1)), and the cyclic
+    // nodes at [levelStart(levels()), size()). Do not modify.
+    int[] order() {
+        analyze();
+        return order;
+    }
+
+    // Position in order() of the first node of the given depth
+    int levelStart(int level) {
+        analyze();
+        return levelStart[level];
+    }
+
+    // The strongly connected component of a node. The components are numbered so a component comes after all the
+    // components it references.
+    int component(int node) {
+        analyze();
+        return component[node];
+    }
+
+    // Whether a node is part of a cycle (of several cells, or a self reference)
+    boolean inCycle(int node) {
+        analyze();
+        return inCycle[node];
+    }
+
+    // Tarjan's strongly connected components (iterative) over the reference edges. A component is completed
+    // only after all the components it references, so the depths can be computed as the components complete.
+    private void analyze() {
+        if (depth != null) return; // Cached
+
+        int[] result = new int[size];
+        int[] components = new int[size];
+        boolean[] cycles = new boolean[size];
+        int completed = 0; // Number of completed components
+        int[] index = new int[size]; // Visit index of each node (starting at 1, 0 for not visited yet)
+        int[] low = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] stack = new int[size];
+        int[] calls = new int[size]; // The explicit call stack
+        int[] edge = new int[size]; // Next reference to visit for each node on the call stack
+        int counter = 0, sp = 0, maxDepth = -1;
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] != 0) continue;
+            int csp = 0;
+            index[root] = low[root] = ++counter;
+            stack[sp++] = root;
+            onStack[root] = true;
+            calls[csp++] = root;
+            edge[root] = 0;
+
+            while (csp > 0) {
+                int v = calls[csp - 1];
+                int[] refs = references[v];
+                if (edge[v] < refs.length) {
+                    int w = refs[edge[v]++];
+                    if (index[w] == 0) { // Visit w
+                        index[w] = low[w] = ++counter;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        calls[csp++] = w;
+                        edge[w] = 0;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                csp--; // v is done
+                if (csp > 0) {
+                    int parent = calls[csp - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+                if (low[v] != index[v]) continue; // Not the root of a component
+
+                if (stack[sp - 1] != v || contains(refs, v)) { // A cycle (of several cells, or a self reference)
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        result[w] = Ex2Utils.ERR_CYCLE_FORM;
+                        components[w] = completed;
+                        cycles[w] = true;
+                    } while (w != v);
+                    completed++;
+                } else {
+                    sp--;
+                    onStack[v] = false;
+                    components[v] = completed++;
+                    int d = 0;
+                    for (int ref : refs) {
+                        if (result[ref] == Ex2Utils.ERR_CYCLE_FORM) {
+                            d = Ex2Utils.ERR_CYCLE_FORM; // Depends on a cycle
+                            break;
+                        }
+                        d = Math.max(d, result[ref] + 1);
+                    }
+                    result[v] = d;
+                    maxDepth = Math.max(maxDepth, d);
+                }
+            }
+        }
+
+        // Counting sort of the nodes by depth, the cyclic nodes last
+        int levels = maxDepth + 1;
+        int[] start = new int[levels + 2];
+        for (int node = 0; node < size; node++) {
+            start[(result[node] < 0 ? levels : result[node]) + 1]++;
+        }
+        for (int level = 0; level <= levels; level++) {
+            start[level + 1] += start[level];
+        }
+        int[] next = Arrays.copyOf(start, levels + 1);
+        int[] sorted = new int[size];
+        for (int node = 0; node < size; node++) {
+            sorted[next[result[node] < 0 ? levels : result[node]]++] = node;
+        }
+
+        depth = result;
+        component = components;
+        inCycle = cycles;
+        order = sorted;
+        levelStart = Arrays.copyOf(start, levels + 1);
+    }
+
+    private static boolean contains(int[] cells, int cell) {
+        for (int c : cells) {
+            if (c == cell) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,39 @@
+package Code;
+
+import java.util.Arrays;
+
+// The scratch space of the evaluations of a thread: the values bound to the references of a formula and its
+// operand stack. Each evaluation takes a frame of slots and gives it back when done, so the evaluations nested
+// in it (of dirty references, see Formula.evaluate) take the next frames. Keeping this out of the formulas and
+// the cells lets any number of threads evaluate the same formulas at once.
+final class EvaluationContext {
+    private static final ThreadLocal<EvaluationContext> CURRENT = ThreadLocal.withInitial(EvaluationContext::new);
+
+    private double[] slots = new double[64];
+    private int top; // The first free slot
+
+    // The context of the current thread
+    static EvaluationContext current() {
+        return CURRENT.get();
+    }
+
+    // Take a frame of the given size, returns its first slot
+    int enter(int size) {
+        int base = top;
+        top += size;
+        if (top > slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(top, 2 * slots.length));
+        }
+        return base;
+    }
+
+    // Give back the frame starting at base (and the frames taken after it)
+    void exit(int base) {
+        top = base;
+    }
+
+    // The slots of the frames, read again after a nested evaluation (which may have grown them)
+    double[] slots() {
+        return slots;
+    }
+}
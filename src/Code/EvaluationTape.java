@@ -0,0 +1,266 @@
+package Code;
+
+import java.util.Arrays;
+
+// The whole dependency-ordered computation of a sheet (see Ex2Sheet.setTape) as one flat program over the values
+// of the nodes of its dependency graph, so a recalculation is a single loop over primitive arrays instead of a walk
+// over the cells. Each formula of the sheet (by increasing depth) is laid out as
+//     target, end, n, slot of reference 1 .. slot of reference n, program
+// where the program is the one of Formula, its references reading the slots of the nodes they name (-1 outside of
+// the sheet) and its jumps moved to the positions on the tape. The tape only depends on the structure of the
+// sheet: a value edit is loaded into its slot and the tape replayed, a structural edit needs a new tape.
+final class EvaluationTape {
+    private static final int FAIL = -1; // The program of a formula which can not be parsed
+
+    private final int[] tape;
+    private final double[] constants; // The constants of all the formulas
+    private final double[] values; // The value of each node
+    private final int[] types; // The type of each node (see Ex2Utils), errors included
+    private final double[] stack;
+    private final int[] changed; // The nodes whose value or type changed in the last replay
+    private boolean failed; // Whether the program being run failed (a division by zero, ...)
+
+    private EvaluationTape(int[] tape, double[] constants, double[] values, int[] types, int stackSize, int formulas) {
+        this.tape = tape;
+        this.constants = constants;
+        this.values = values;
+        this.types = types;
+        this.stack = new double[stackSize];
+        this.changed = new int[formulas];
+    }
+
+    // The tape of a sheet (not part of a workbook) whose cells are all computed, null if one of its formulas uses
+    // ranges, which read more than the slots of their references
+    static EvaluationTape build(DependencyGraph graph, CellStore cells) {
+        int size = graph.size();
+        double[] values = new double[size];
+        int[] types = new int[size];
+        for (int node = 0; node < size; node++) {
+            SCell cell = cells.get(CellEntry.packedX(graph.cell(node)), CellEntry.packedY(graph.cell(node)));
+            if (cell == null) cell = SCell.EMPTY;
+            values[node] = cell.getValue();
+            types[node] = graph.inCycle(node) ? Ex2Utils.ERR_CYCLE_FORM : cell.getType();
+        }
+
+        int[] tape = new int[64];
+        int length = 0, stackSize = 1, formulas = 0;
+        double[] constants = new double[16];
+        int constantCount = 0;
+        for (int node : formulaOrder(graph)) {
+            long key = graph.cell(node);
+            SCell cell = cells.get(CellEntry.packedX(key), CellEntry.packedY(key));
+            Formula formula = cell == null ? null : cell.getFormula();
+            if (formula == null) continue; // An input, loaded by the edits
+
+            int[] slots = new int[formula.size()];
+            for (int r = 0; r < slots.length; r++) {
+                boolean in = Ex2Sheet.isIn(cells, formula.refX(r), formula.refY(r));
+                slots[r] = in ? graph.node(((long) formula.refX(r) << 32) | formula.refY(r)) : -1;
+            }
+            int start = length + 3 + slots.length;
+            int[] program = formula.isValid() ? formula.relocate(slots, constantCount, start) : new int[]{FAIL};
+            if (program == null) return null;
+
+            int end = start + program.length;
+            if (end > tape.length) tape = Arrays.copyOf(tape, Math.max(tape.length * 2, end));
+            tape[length] = node;
+            tape[length + 1] = end;
+            tape[length + 2] = slots.length;
+            System.arraycopy(slots, 0, tape, length + 3, slots.length);
+            System.arraycopy(program, 0, tape, start, program.length);
+            length = end;
+
+            if (formula.isValid()) {
+                double[] numbers = formula.constants();
+                if (constantCount + numbers.length > constants.length) {
+                    constants = Arrays.copyOf(constants, Math.max(constants.length * 2, constantCount + numbers.length));
+                }
+                System.arraycopy(numbers, 0, constants, constantCount, numbers.length);
+                constantCount += numbers.length;
+                stackSize = Math.max(stackSize, formula.stackSize());
+            }
+            formulas++;
+        }
+        return new EvaluationTape(Arrays.copyOf(tape, length), Arrays.copyOf(constants, constantCount),
+                values, types, stackSize, formulas);
+    }
+
+    // The nodes by depth, then the nodes depending on a cycle after the components they reference. The nodes of
+    // the cycles never change, so they are left out.
+    private static int[] formulaOrder(DependencyGraph graph) {
+        int[] order = graph.order();
+        int acyclic = graph.levelStart(graph.levels());
+        long[] byComponent = new long[order.length - acyclic];
+        for (int i = acyclic; i < order.length; i++) {
+            byComponent[i - acyclic] = ((long) graph.component(order[i]) << 32) | order[i];
+        }
+        Arrays.sort(byComponent);
+        int[] nodes = Arrays.copyOf(order, order.length);
+        int n = acyclic;
+        for (long entry : byComponent) {
+            if (!graph.inCycle((int) entry)) nodes[n++] = (int) entry;
+        }
+        return Arrays.copyOf(nodes, n);
+    }
+
+    // Load the new (computed) value of an input cell, before the next replay
+    void load(int node, SCell cell) {
+        values[node] = cell.getValue();
+        types[node] = cell.getType();
+    }
+
+    // Recompute all the formulas, in order. Returns the number of formulas whose value (or type) changed, see
+    // changed.
+    int replay() {
+        int[] tape = this.tape;
+        double[] values = this.values;
+        int[] types = this.types;
+        int count = 0, pc = 0;
+        while (pc < tape.length) {
+            int target = tape[pc], end = tape[pc + 1], n = tape[pc + 2];
+            pc += 3;
+            int type = Ex2Utils.FORM;
+            for (int i = 0; i < n; i++) { // The same checks, in the same order, as Formula.evaluate
+                int ref = tape[pc + i];
+                int refType = ref < 0 ? Ex2Utils.ERR_FORM_FORMAT : types[ref];
+                if (refType == Ex2Utils.ERR_CYCLE_FORM) {
+                    type = Ex2Utils.ERR_CYCLE_FORM;
+                    break;
+                }
+                if (refType != Ex2Utils.NUMBER && refType != Ex2Utils.FORM) {
+                    type = Ex2Utils.ERR_FORM_FORMAT;
+                    break;
+                }
+            }
+            double value = type;
+            if (type == Ex2Utils.FORM) {
+                value = run(pc + n, end);
+                if (failed) {
+                    type = Ex2Utils.ERR_FORM_FORMAT;
+                    value = type;
+                }
+            }
+            if (types[target] != type || Double.compare(values[target], value) != 0) {
+                values[target] = value;
+                types[target] = type;
+                changed[count++] = target;
+            }
+            pc = end;
+        }
+        return count;
+    }
+
+    // The i-th node changed by the last replay
+    int changed(int i) {
+        return changed[i];
+    }
+
+    double value(int node) {
+        return values[node];
+    }
+
+    int type(int node) {
+        return types[node];
+    }
+
+    // Run the program of one formula, tape[from, to) (see Formula.run)
+    private double run(int from, int to) {
+        int[] tape = this.tape;
+        double[] stack = this.stack;
+        int sp = 0, pc = from;
+        failed = false;
+        while (pc < to) {
+            switch (tape[pc++]) {
+                case Formula.CONST:
+                    stack[sp++] = constants[tape[pc++]];
+                    break;
+                case Formula.REF:
+                    stack[sp++] = values[tape[pc++]];
+                    break;
+                case Formula.ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case Formula.SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case Formula.MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case Formula.DIV:
+                    sp--;
+                    if (stack[sp] == 0) {
+                        failed = true;
+                        return 0;
+                    }
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case Formula.NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Formula.SIN:
+                    stack[sp - 1] = Math.sin(stack[sp - 1]);
+                    break;
+                case Formula.COS:
+                    stack[sp - 1] = Math.cos(stack[sp - 1]);
+                    break;
+                case Formula.POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case Formula.MIN:
+                case Formula.MAX: {
+                    boolean min = tape[pc - 1] == Formula.MIN;
+                    int n = tape[pc++];
+                    double result = stack[sp - n];
+                    for (int k = sp - n + 1; k < sp; k++) {
+                        result = min ? Math.min(result, stack[k]) : Math.max(result, stack[k]);
+                    }
+                    sp -= n - 1;
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case Formula.COUNTED:
+                    stack[sp - 1] = 1;
+                    break;
+                case Formula.AVG: {
+                    int n = tape[pc++];
+                    double sum = 0, count = 0;
+                    for (int k = sp - 2 * n; k < sp; k += 2) {
+                        sum += stack[k];
+                        count += stack[k + 1];
+                    }
+                    if (count == 0) {
+                        failed = true;
+                        return 0;
+                    }
+                    sp -= 2 * n - 1;
+                    stack[sp - 1] = sum / count;
+                    break;
+                }
+                case Formula.JUMP:
+                    pc = tape[pc];
+                    break;
+                case Formula.JUMP_IF_ZERO: {
+                    int target = tape[pc++];
+                    if (stack[--sp] == 0) {
+                        pc = target;
+                    }
+                    break;
+                }
+                case Formula.SHARED: // The shared subexpressions are computed again
+                    pc += 2;
+                    break;
+                case Formula.SHARE:
+                    pc++;
+                    break;
+                default: // FAIL
+                    failed = true;
+                    return 0;
+            }
+        }
+        return stack[0];
+    }
+}
@@ -24,7 +24,10 @@ public class Ex2GUI {
 
 	/** The main function for running Ex2 */
 	public static void main(String[] a) {
-		table = new Ex2Sheet(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+		AsyncSheet sheet = new AsyncSheet(Ex2Utils.WIDTH, Ex2Utils.HEIGHT); // Recalculates the edits in the background
+		sheet.setViewport(0, 0, Ex2Utils.WIDTH - 1, Ex2Utils.HEIGHT - 1); // the drawn cells are evaluated first
+		sheet.setLazy(true); // the others in idle time
+		table = sheet;
 		testSimpleGUI(table);
 	}
 
@@ -44,6 +47,7 @@ public class Ex2GUI {
 			StdDrawEx2.clear(); // clear the GUI (Ex2 window).
 			drawFrame(); // draws the lines.
 			drawCells(); // draws the cells
+			drawProgress(); // the progress of a background recalculation (if any)
 			StdDrawEx2.show(); // presents the window.
 			int xx = StdDrawEx2.getXX(); // gets the x coordinate of the mouse click (-1 if none)
 			int yy = StdDrawEx2.getYY(); // gets the y coordinate of the mouse click (-1 if none)
@@ -91,7 +95,7 @@ public class Ex2GUI {
 			StdDrawEx2.line(xs, 0, xs, max_y);
 			int yy = max_y - (y + 1);
 			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			StdDrawEx2.text(xc, max_y + y_height, CellEntry.columnName(y));
 		}
 	}
 	/**
@@ -109,7 +113,7 @@ public class Ex2GUI {
 				String w = table.value(x, y);//""+abc[x]+y;
 				Cell cc = table.get(x, y);
 				int t = cc.getType();
-				StdDrawEx2.setPenColor(getColorFromType(t));
+				StdDrawEx2.setPenColor(isStale(x, y) ? StdDrawEx2.LIGHT_GRAY : getColorFromType(t)); // last known value
 				int max = Math.min(Ex2Utils.MAX_CHARS, w.length());
 				w = w.substring(0, max);
 				double yc = max_y - (y + 1 - y_height);
@@ -118,6 +122,20 @@ public class Ex2GUI {
 		}
 	}
 
+	/** Whether the value of cell(x,y) is being recalculated in the background (see AsyncSheet). */
+	private static boolean isStale(int x, int y) {
+		return table instanceof AsyncSheet && ((AsyncSheet) table).isStale(x, y);
+	}
+
+	/** Draws the progress of the background recalculation, while there is one. */
+	private static void drawProgress() {
+		if (table instanceof AsyncSheet && ((AsyncSheet) table).isBusy()) {
+			StdDrawEx2.setPenColor(StdDrawEx2.GRAY);
+			int percent = (int) (100 * ((AsyncSheet) table).progress());
+			StdDrawEx2.text(Ex2Utils.GUI_X_START, Ex2Utils.MAX_X - 1, "Recalculating... " + percent + "%");
+		}
+	}
+
 	/** input a content into cell(xx,yy) if it is within this SpreadSheet.
 	 *
 	 * @param xx the x coordinate of the required cell.
@@ -132,18 +150,9 @@ public class Ex2GUI {
 			StdDrawEx2.show();
 			if(Ex2Utils.Debug) {System.out.println(ww);}
 			String c = StdDrawEx2.getCell(cord,cc.getData());
-			String s1 = table.get(xx,yy).getData();
-			if(c==null) {
-				table.set(xx,yy,s1);
-			}
-			else {
-				table.set(xx, yy, c);
-				int[][] calc_d = table.depth();
-				if (calc_d[xx][yy] == Ex2Utils.ERR_CYCLE_FORM) {
-					table.get(xx,yy).setType(Ex2Utils.ERR_CYCLE_FORM);
-				}
+			if(c!=null) {
+				table.set(xx, yy, c); // set() reevaluates the cell and its dependents (in the background for an AsyncSheet)
 			}
-			table.eval();
 			StdDrawEx2.resetXY();
 		}
 	}
@@ -2,183 +2,1107 @@ package Code;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 public class Ex2Sheet implements Sheet {
-    private SCell[][] table; // 2D array to represent the cells in the sheet
-    private Map<String, Set<String>> dependencies = new HashMap<>(); // Stores dependencies for each cell
+    private static final int SHEET_SHIFT = 56; // The index of the sheet in its workbook, above the coordinates (see key)
+    static final int MAX_WIDTH = 1 << (SHEET_SHIFT - 32); // The x-coordinate must fit below the index of the sheet
+    private static final long COORDINATES = (1L << SHEET_SHIFT) - 1;
+
+    private CellStore cells; // The written cells of the sheet, the others are empty
+    private DependencyGraph dependencies; // Stores dependencies for each cell (by packed coordinates, see key)
+    private final Workbook workbook; // The workbook sharing its dependency graph with this sheet, null if none
+    private final int index; // The index of this sheet in its workbook
+    private final long tag; // The index, in the bits of the keys above the coordinates (see key)
+    private Set<Long> rangeOwners = new HashSet<>(); // The formulas with ranges (see cellCreated)
+    private Aggregates aggregates; // Sums and counts over the computed values, for the ranges of formulas
+    private ForkJoinPool pool; // Evaluates the buckets of eval() in parallel, null for a sequential evaluation
+    private static final int PARALLEL_THRESHOLD = 1024; // Smaller buckets are not worth splitting across threads
+    private static final int MIN_RUN = 8; // Shorter runs of a filled-down formula are computed cell by cell
+    private int batchDepth; // Number of open batches (see beginBatch)
+    private long[] batchCells = new long[16]; // The cells edited by the open batch
+    private int batchSize;
+    private volatile Sheet snapshot; // The last published snapshot, null until the first call of snapshot()
+    private Monitor monitor; // Observes (and may cancel) the recalculations of commitBatch, null for none
+    private boolean lazy; // Whether the edits only mark the affected cells as dirty (see setLazy)
+    private long[] deferred = new long[16]; // The cells marked as dirty by the lazy mode (by key), oldest first
+    private int deferredStart, deferredEnd;
+    private int maxIterations; // The iterations of a cycle (see setIterative), 0 if the cycles are errors
+    private final List<CycleReport> cycleReports = new ArrayList<>(); // The cycles iterated by the last evaluation
+    private volatile int compileThreshold; // Evaluations of a formula before it is compiled, 0 to never compile
+    private boolean taped; // Whether the value edits replay the evaluation tape (see setTape)
+    private EvaluationTape tape; // Null until the next value edit after a structural one
+    private boolean sharing; // Whether the formulas share their common subexpressions (see setSharing)
+    private Map<String, SharedSubexpression> subexpressions = new HashMap<>(); // By key (see Formula.sharedKey)
+    private static final int PROGRESS_STEP = 64; // Number of cells between two calls of the monitor
+
+    // Observes the recalculations of the batches of edits (see AsyncSheet)
+    interface Monitor {
+        // The cells of the sheet (by packed coordinates, see CellEntry.parse) about to be reevaluated
+        void recalculating(long[] cells);
+
+        // Number of reevaluated cells so far, out of total
+        void progress(int done, int total);
+
+        // Whether to stop the recalculation (checked between cells), the cells left are reevaluated by the next
+        // commitBatch
+        boolean cancelled();
+    }
 
     // Constructor with specified dimensions
     public Ex2Sheet(int x, int y) {
-        table = new SCell[x][y]; // Initialize the table with dimensions x by y
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < y; j++) {
-                table[i][j] = new SCell(""); // Initialize each cell with empty data
-            }
+        this(new ChunkedCellStore(x, y)); // Empty, the cells are allocated when they are written
+    }
+
+    // Constructor over a given (empty) store of cells
+    Ex2Sheet(CellStore cells) {
+        this(cells, null, 0, new DependencyGraph());
+    }
+
+    // Constructor of the index-th sheet of a workbook (see Workbook.addSheet), over its shared dependency graph
+    Ex2Sheet(CellStore cells, Workbook workbook, int index, DependencyGraph dependencies) {
+        if (cells.width() > MAX_WIDTH) {
+            throw new IllegalArgumentException("A sheet has at most " + MAX_WIDTH + " columns");
         }
+        this.cells = cells;
+        this.dependencies = dependencies;
+        this.workbook = workbook;
+        this.index = index;
+        tag = (long) index << SHEET_SHIFT;
+        aggregates = new Aggregates(cells.width(), cells.height());
         eval(); // Evaluate all cells after initialization
     }
 
+    // A sheet keeping its cells outside of the Java heap (see OffHeapCellStore), for very large sheets.
+    // Its cells are views: get returns a new (equivalent) SCell on each call.
+    public static Ex2Sheet offHeap(int x, int y) {
+        return new Ex2Sheet(new OffHeapCellStore(x, y));
+    }
+
     // Default constructor using constants from Ex2Utils
     public Ex2Sheet() {
         this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
     }
 
-    // Helper method to generate a unique key for each cell (x, y)
-    private String cellKey(int x, int y) {
-        return x + "," + y;
+    // Enable (or with null, disable) the parallel evaluation of eval(): the cells of the same order do not depend
+    // on each other, so each bucket is split across the pool, and the next bucket starts once it is done.
+    // The recalculation of an edit (or a batch) evaluates the independent cones of its dependents on the pool too.
+    public void setParallelism(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Enable (with maxIterations > 0) or disable (with 0, the default) the iterative calculation of the cycles:
+    // instead of ERR_CYCLE, the cells of each cycle are computed over and over (each one with the latest values
+    // of the others, from the last values of the cycle or 0) until their values change by less than
+    // Ex2Utils.EPS, or for maxIterations iterations. Only the cycles are iterated, the other cells are computed
+    // once. Applies from the next evaluation, see cycleReports.
+    public void setIterative(int maxIterations) {
+        if (maxIterations < 0) {
+            throw new IllegalArgumentException("Negative number of iterations " + maxIterations);
+        }
+        this.maxIterations = maxIterations;
+        tape = null;
+    }
+
+    // The cycles iterated by the last evaluation (set, commitBatch or eval), in the order they were computed
+    public synchronized List<CycleReport> cycleReports() {
+        return new ArrayList<>(cycleReports);
+    }
+
+    // Enable (with evaluations > 0) or disable (with 0, the default) the compilation of the hot formulas: a formula
+    // evaluated this many times is compiled into a tree of method handles (see FormulaCompiler), which the JIT turns
+    // into straight-line code, instead of running its program through the interpreter of Formula. Worth it for
+    // sheets recalculated over and over (e.g., driven by edits of their inputs).
+    public void setCompileThreshold(int evaluations) {
+        if (evaluations < 0) {
+            throw new IllegalArgumentException("Negative number of evaluations " + evaluations);
+        }
+        compileThreshold = evaluations;
+    }
+
+    int compileThreshold() {
+        return compileThreshold;
+    }
+
+    // Enable (or disable) the recalculation of the value edits by an evaluation tape: the whole computation of the
+    // sheet laid out as one flat program (see EvaluationTape), built on the first value edit after a structural
+    // one (an edit of a formula) and replayed by each value edit, so a recalculation runs over primitive arrays
+    // rather than the cells. Worth it for models of a fixed structure recalculated over and over. The tape is
+    // not used by the sheets of a workbook, in the lazy or iterative modes, nor when a formula uses ranges.
+    public void setTape(boolean taped) {
+        this.taped = taped;
+        tape = null;
+    }
+
+    // The current evaluation tape, null if none was built since the last structural edit (see setTape)
+    EvaluationTape tape() {
+        return tape;
+    }
+
+    // Enable (or disable) the sharing of the subexpressions common to several formulas of the sheet (e.g., the
+    // "A0+B0" of "=(A0+B0)*C1" and "=(A0+B0)/D1"): each of them is computed once per recalculation, by the first
+    // formula needing it (see SharedSubexpression). Worth it for generated models repeating large subexpressions,
+    // it costs a lookup table of all the subexpressions of the sheet.
+    public void setSharing(boolean sharing) {
+        this.sharing = sharing;
+        relink();
+    }
+
+    // Observe the recalculations of commitBatch (see Monitor), null to stop
+    void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    // Enable (or disable) the lazy evaluation, for sheets much larger than what is looked at: set(),
+    // commitBatch(), eval() and load() only mark the affected cells as dirty, and a dirty cell is computed (with
+    // the dirty cells it depends on, only) when it is read through value() or eval(x, y), by evaluate (e.g.,
+    // the visible part of a GUI) or by evaluateDeferred (e.g., in idle time). The snapshots and get() show the
+    // last computed values. Disabling it evaluates the cells left.
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+        tape = null; // Its inputs are not loaded in the lazy mode
+        if (!lazy) {
+            evaluateDeferred(Integer.MAX_VALUE);
+        }
+    }
+
+    // Evaluate the dirty cells of the range [x1..x2] x [y1..y2] and the cells they depend on (see setLazy)
+    public void evaluate(int x1, int y1, int x2, int y2) {
+        List<Long> dirty = new ArrayList<>();
+        cells.forEach(Math.max(0, x1), Math.max(0, y1), Math.min(x2, width() - 1), Math.min(y2, height() - 1),
+                (x, y, cell) -> {
+                    if (cell.isDirty()) dirty.add(key(x, y));
+                });
+        for (long key : dirty) {
+            eval(keyX(key), keyY(key));
+        }
+        if (!dirty.isEmpty()) {
+            publishSnapshot();
+        }
+    }
+
+    // Evaluate up to limit of the cells left dirty by the lazy mode, oldest first (see setLazy). Returns
+    // whether there are cells left.
+    public boolean evaluateDeferred(int limit) {
+        int evaluated = 0;
+        while (deferredStart < deferredEnd && evaluated < limit) {
+            long key = deferred[deferredStart++];
+            owner(key).eval(keyX(key), keyY(key)); // Nothing to do if it was read meanwhile
+            evaluated++;
+        }
+        if (deferredStart == deferredEnd) {
+            deferredStart = deferredEnd = 0;
+        }
+        if (evaluated > 0) {
+            publishSnapshot();
+        }
+        return deferredStart < deferredEnd;
+    }
+
+    // Mark a cell (by key) as dirty, to be evaluated later (see setLazy)
+    private void defer(long key) {
+        SCell cell = owner(key).cells.getForWrite(keyX(key), keyY(key));
+        if (cell == null) return; // An empty cell, nothing to compute
+        cell.setDirty();
+        if (deferredEnd == deferred.length) {
+            if (deferredStart > deferred.length / 2) { // Reuse the evaluated part
+                System.arraycopy(deferred, deferredStart, deferred, 0, deferredEnd - deferredStart);
+                deferredEnd -= deferredStart;
+                deferredStart = 0;
+            } else {
+                deferred = Arrays.copyOf(deferred, deferred.length * 2);
+            }
+        }
+        deferred[deferredEnd++] = key;
+    }
+
+    // The sums and counts over the computed values of the cells (used by the ranges of formulas)
+    Aggregates aggregates() {
+        return aggregates;
+    }
+
+    // The coordinates of a cell of this sheet packed in a long, as CellEntry.parse does, with the index of the
+    // sheet in its workbook above them (so the sheets of a workbook share one dependency graph)
+    private long key(int x, int y) {
+        return key(tag, x, y);
+    }
+
+    private static long key(long tag, int x, int y) {
+        return tag | ((long) x << 32) | y;
+    }
+
+    private static int keyX(long key) {
+        return (int) ((key & COORDINATES) >>> 32);
+    }
+
+    private static int keyY(long key) {
+        return (int) key;
+    }
+
+    // The index of the sheet of a key in its workbook
+    static int keySheet(long key) {
+        return (int) (key >>> SHEET_SHIFT);
+    }
+
+    // The sheet of a key (another sheet of the workbook for a cross-sheet reference)
+    private Ex2Sheet owner(long key) {
+        return workbook == null ? this : workbook.sheet(keySheet(key));
+    }
+
+    // Whether a node of the (shared) dependency graph is a cell of this sheet
+    private boolean owns(int node) {
+        return (dependencies.cell(node) & ~COORDINATES) == tag;
+    }
+
+    // The sheet of the same workbook with the given name, null if there is none (or no workbook)
+    Ex2Sheet resolve(String name) {
+        return workbook == null ? null : workbook.sheet(name);
+    }
+
+    // The stored cell of a node of the dependency graph, to be modified (null for an empty cell)
+    private SCell cellOf(int node) {
+        long key = dependencies.cell(node);
+        return owner(key).cells.getForWrite(keyX(key), keyY(key));
+    }
+
+    // The cell at (x, y) to be read only, SCell.EMPTY if it was never written (unlike get, it is not copied
+    // away from the snapshots)
+    SCell cellAt(int x, int y) {
+        SCell cell = cells.get(x, y);
+        return cell == null ? SCell.EMPTY : cell;
+    }
+
+    // Visit the stored cells of the range [x1..x2] x [y1..y2], chunk by chunk
+    void forEachIn(int x1, int y1, int x2, int y2, CellStore.CellVisitor visitor) {
+        cells.forEach(x1, y1, x2, y2, visitor);
+    }
+
+    // The stored cell at (x, y) to modify (copied out of the published snapshots), allocated (empty) if needed
+    private SCell materialize(int x, int y) {
+        SCell cell = cells.getForWrite(x, y);
+        if (cell == null) {
+            cell = cells.getOrCreate(x, y);
+            cellCreated(x, y);
+        }
+        return cell;
+    }
+
+    // A new cell may be part of the ranges of existing formulas (of any sheet of the workbook), which now
+    // reference it
+    private void cellCreated(int x, int y) {
+        for (Ex2Sheet sheet : workbook == null ? Collections.singletonList(this) : workbook.sheets()) {
+            List<Long> owners = new ArrayList<>();
+            for (long owner : sheet.rangeOwners) {
+                SCell cell = sheet.cells.get(keyX(owner), keyY(owner));
+                Formula formula = cell == null ? null : cell.getFormula();
+                if (formula != null && formula.rangesContain(sheet, this, x, y)) owners.add(owner);
+            }
+            for (long owner : owners) {
+                sheet.updateDependencies(keyX(owner), keyY(owner));
+            }
+        }
+    }
+
+    // Update the references of the formulas naming the given sheet (upper case), which was just added to the
+    // workbook or loaded. Returns whether there were any.
+    boolean refreshReferencesTo(String sheet) {
+        List<Long> formulas = new ArrayList<>();
+        cells.forEach((x, y, cell) -> {
+            if (cell.getFormula() != null && cell.getFormula().names(sheet)) formulas.add(key(x, y));
+        });
+        for (long key : formulas) {
+            updateDependencies(keyX(key), keyY(key));
+        }
+        return !formulas.isEmpty();
     }
 
     // Get the value of a cell at position (x, y)
     @Override
     public String value(int x, int y) {
         if (isIn(x, y)) { // Check if coordinates are valid
-            String cellValue = eval(x, y); // Evaluate the value of the cell
-            if (table[x][y].getType() == Ex2Utils.ERR_FORM_FORMAT) {
+            return eval(x, y); // The evaluated value (or error message) of the cell
+        }
+        return Ex2Utils.EMPTY_CELL; // Return empty cell message if coordinates are out of bounds
+    }
+
+    // Format the computed value of a (clean) cell as it should be presented
+    static String format(SCell cell) {
+        switch (cell.getType()) {
+            case Ex2Utils.ERR_FORM_FORMAT:
                 return Ex2Utils.ERR_FORM; // Return error message if there's a format error
-            }
-            if (table[x][y].getType() == Ex2Utils.ERR_CYCLE_FORM) {
+            case Ex2Utils.ERR_CYCLE_FORM:
                 return Ex2Utils.ERR_CYCLE; // Return cycle error message
-            }
-            if (cellValue.isEmpty()) {
-                return ""; // Return empty string if there's no value
-            }
-            return cellValue; // Return the evaluated value
+            case Ex2Utils.TEXT:
+                return cell.getData(); // Text (or an empty cell) is presented as is
+            default:
+                return String.valueOf(cell.getValue()); // Numbers and formulas
         }
-        return Ex2Utils.EMPTY_CELL; // Return empty cell message if coordinates are out of bounds
     }
 
-    // Get the SCell object at position (x, y)
+    // Get the SCell object at position (x, y), the shared SCell.EMPTY if it was never written
     @Override
     public SCell get(int x, int y) {
-        return isIn(x, y) ? table[x][y] : null; // Return the cell or null if out of bounds
+        if (!isIn(x, y)) return null; // Return null if out of bounds
+        SCell cell = cells.getForWrite(x, y); // Its changes must not reach the snapshots
+        return cell == null ? SCell.EMPTY : cell;
     }
 
-    // Get the SCell object using string coordinates
+    // Get the SCell object using string coordinates (null if they are invalid or out of bounds)
     @Override
     public SCell get(String cords) {
-        int[] coord = cellCoordinates(cords); // Convert string coordinates to integer coordinates
-        return get(coord[0], coord[1]);
+        if (cords == null) return null;
+        long packed = CellEntry.parse(cords, 0, cords.length()); // Convert string coordinates to integer coordinates
+        return packed < 0 ? null : get(CellEntry.packedX(packed), CellEntry.packedY(packed));
     }
 
     // Get the width of the sheet (number of rows)
     @Override
     public int width() {
-        return table.length; // Number of rows in the table
+        return cells.width(); // Number of rows in the table
     }
 
     // Get the height of the sheet (number of columns)
     @Override
     public int height() {
-        return table[0].length; // Number of columns in the first row
+        return cells.height(); // Number of columns in the first row
     }
 
     // Set the data for a cell at position (x, y)
     @Override
     public void set(int x, int y, String s) {
         if (isIn(x, y)) { // Check if coordinates are valid
-            table[x][y].setData(s); // Set the cell's data
-            eval(); // Reevaluate the sheet after setting the value
+            if (cells.get(x, y) == null && "".equals(s)) return; // Still empty, nothing to allocate
+            SCell cell = materialize(x, y);
+            Formula old = cell.getFormula();
+            cell.setData(s); // Set the cell's data
+            unshare(old);
+            share(cell.getFormula());
+            if (old != null || cell.getFormula() != null) {
+                tape = null; // The references or the program of a formula may have changed
+            }
+            updateDependencies(x, y); // Replace the old references of the cell with the new ones
+            if (batchDepth > 0) {
+                addToBatch(key(x, y)); // Reevaluated when the batch is committed
+            } else {
+                recalculate(null, key(x, y)); // Reevaluate only the cell and the cells depending on it
+                publishSnapshot();
+            }
         }
     }
 
-    // Evaluate the entire sheet
-    @Override
-    public void eval() {
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                eval(i, j); // Evaluate each cell individually
+    // Start a batch of edits: set() only stores the data until the matching commitBatch(), which reevaluates all
+    // the edited cells (and their dependents) at once. The values read in the middle of a batch may be outdated.
+    // Batches may be nested, only the outermost commitBatch() reevaluates.
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    // End a batch of edits (see beginBatch), reevaluating the cells affected by all of its edits in one pass.
+    // A recalculation cancelled by the monitor is not published, its cells are left to the next commitBatch.
+    public void commitBatch() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("No batch to commit");
+        }
+        if (--batchDepth == 0 && batchSize > 0) {
+            long[] edited = Arrays.copyOf(batchCells, batchSize);
+            batchSize = 0;
+            if (recalculate(monitor, edited)) {
+                publishSnapshot(); // The readers of the snapshots see the whole batch at once
             }
         }
     }
 
-    // Evaluate a specific cell at position (x, y)
-    @Override
-    public String eval(int x, int y) {
-        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL; // Return empty cell if out of bounds
+    // Add a cell (by key) to the cells reevaluated by the next commitBatch
+    private void addToBatch(long key) {
+        if (batchSize == batchCells.length) batchCells = Arrays.copyOf(batchCells, batchSize * 2);
+        batchCells[batchSize++] = key;
+    }
 
-        SCell cell = table[x][y];
-        if (cell.isVisit()) {
-            cell.setType(Ex2Utils.ERR_CYCLE_FORM); // Mark as cycle error if the cell has been visited already
-            return Ex2Utils.ERR_CYCLE; // Return cycle error message
+    // Set the data of many cells as one batch (see beginBatch)
+    public void setAll(Map<? extends Index2D, String> cells) {
+        beginBatch();
+        try {
+            for (Map.Entry<? extends Index2D, String> entry : cells.entrySet()) {
+                set(entry.getKey().getX(), entry.getKey().getY(), entry.getValue());
+            }
+        } finally {
+            commitBatch();
         }
+    }
 
-        if (cell.getType() == Ex2Utils.TEXT) {
-            return cell.getData(); // Return the cell's text value
+    // An immutable view of the sheet, consistent as of the end of the last set() (outside of a batch),
+    // commitBatch(), eval() or load(). It is taken in O(1), sharing the cells until the sheet modifies them, so
+    // other threads can read it (and take newer ones) while this sheet is being modified, without any locking.
+    // The first call starts publishing the snapshots, and must not run concurrently with a modification.
+    // Not supported by the off-heap sheets.
+    public Sheet snapshot() {
+        if (snapshot == null) {
+            publishSnapshot(cells.snapshot());
         }
-        if (cell.getType() == Ex2Utils.NUMBER) {
-            return String.valueOf(Double.parseDouble(cell.getData())); // Return the numeric value of the cell
+        return snapshot;
+    }
+
+    // Publish a snapshot of the current (consistent) state, if snapshot() was ever called
+    void publishSnapshot() {
+        if (snapshot != null) {
+            publishSnapshot(cells.snapshot());
         }
+    }
 
-        try {
-            cell.setVisit(true); // Mark the cell as visited to prevent cycles
-            double result = cell.evaluate(this, cell); // Evaluate the cell's formula
-            cell.setVisit(false); // Unmark the cell as visited after evaluation
-            return String.valueOf(result); // Return the result of the evaluation
-        } catch (Exception e) {
-            cell.setType(Ex2Utils.ERR_FORM_FORMAT); // Mark as invalid format if there's an exception
-            return Ex2Utils.ERR_FORM; // Return error message for format error
+    private void publishSnapshot(CellStore frozen) {
+        snapshot = new SheetSnapshot(frozen);
+    }
+
+    // Collect the distinct (in bounds) cells referenced by the formula at position (x, y), including the
+    // stored cells of its ranges (the empty cells of a range do not affect its value)
+    private long[] references(int x, int y) {
+        return references(cells, x, y, this);
+    }
+
+    // The references of a formula of the given store, for the given sheet. Without a sheet (for a snapshot), the
+    // references naming other sheets are left out.
+    static long[] references(CellStore cells, int x, int y, Ex2Sheet sheet) {
+        SCell cell = cells.get(x, y);
+        Formula formula = cell == null ? null : cell.getFormula();
+        if (formula == null) {
+            return new long[0]; // Only formulas reference other cells
+        }
+
+        long[][] refs = {new long[formula.size() + 16]};
+        int[] count = {0};
+        for (int i = 0; i < formula.size(); i++) {
+            Ex2Sheet target = formula.refSheet(i) == null ? sheet : resolve(sheet, formula.refSheet(i));
+            if (formula.refSheet(i) != null && target == null) continue; // An unknown sheet, an error until added
+            CellStore store = formula.refSheet(i) == null ? cells : target.cells;
+            if (isIn(store, formula.refX(i), formula.refY(i))) {
+                refs[0][count[0]++] = key(target == null ? 0 : target.tag, formula.refX(i), formula.refY(i));
+            }
+        }
+        for (int i = 0; i < formula.ranges(); i++) {
+            Ex2Sheet target = formula.rangeSheet(i) == null ? sheet : resolve(sheet, formula.rangeSheet(i));
+            if (formula.rangeSheet(i) != null && target == null) continue;
+            CellStore store = formula.rangeSheet(i) == null ? cells : target.cells;
+            long tag = target == null ? 0 : target.tag;
+            if (isIn(store, formula.rangeX1(i), formula.rangeY1(i)) && isIn(store, formula.rangeX2(i), formula.rangeY2(i))) {
+                store.forEach(formula.rangeX1(i), formula.rangeY1(i), formula.rangeX2(i), formula.rangeY2(i),
+                        (rx, ry, ref) -> {
+                            if (count[0] == refs[0].length) refs[0] = Arrays.copyOf(refs[0], count[0] * 2);
+                            refs[0][count[0]++] = key(tag, rx, ry);
+                        });
+            }
+        }
+
+        // Different names (e.g., "A1" and "A01") or overlapping ranges may refer to the same cell
+        long[] sorted = refs[0];
+        Arrays.sort(sorted, 0, count[0]);
+        int distinct = 0;
+        for (int i = 0; i < count[0]; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
         }
+        return Arrays.copyOf(sorted, distinct);
     }
 
-    // Check if the coordinates (xx, yy) are within the sheet's bounds
-    @Override
-    public boolean isIn(int xx, int yy) {
-        return xx >= 0 && yy >= 0 && xx < width() && yy < height(); // Check if coordinates are valid
+    private static Ex2Sheet resolve(Ex2Sheet sheet, String name) {
+        return sheet == null ? null : sheet.resolve(name);
     }
 
-    // Calculate the depth matrix for evaluating formulas and dependencies
-    @Override
-    public int[][] depth() {
-        int[][] depthMatrix = new int[width()][height()]; // Initialize depth matrix
-        boolean[][] visited = new boolean[width()][height()]; // Initialize visited matrix
-
-        for (int x = 0; x < width(); x++) {
-            for (int y = 0; y < height(); y++) {
-                if (!visited[x][y]) {
-                    if (!updateDepth(x, y, visited, new HashSet<>(), depthMatrix)) {
-                        depthMatrix[x][y] = Ex2Utils.ERR_CYCLE_FORM; // Mark as cycle if update fails
+    // Link the subexpressions of all the formulas of the sheet from scratch
+    private void relink() {
+        subexpressions = new HashMap<>();
+        cells.forEach((x, y, cell) -> {
+            if (cell.getFormula() != null) cell.getFormula().link(null);
+            share(cell.getFormula());
+        });
+    }
+
+    // Link the subexpressions of a formula of the sheet (if any) to the nodes shared with its other formulas
+    private void share(Formula formula) {
+        if (!sharing || formula == null || formula.sharedCount() == 0) return;
+        SharedSubexpression[] nodes = new SharedSubexpression[formula.sharedCount()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = subexpressions.computeIfAbsent(formula.sharedKey(i), key -> new SharedSubexpression());
+            nodes[i].users++;
+        }
+        formula.link(nodes);
+    }
+
+    // Unlink the subexpressions of a formula removed from the sheet
+    private void unshare(Formula formula) {
+        SharedSubexpression[] nodes = formula == null ? null : formula.linked();
+        if (nodes == null) return;
+        for (int i = 0; i < nodes.length; i++) {
+            if (--nodes[i].users == 0) subexpressions.remove(formula.sharedKey(i), nodes[i]);
+        }
+        formula.link(null);
+    }
+
+    // Update the dependency graph for the cell at position (x, y)
+    private void updateDependencies(int x, int y) {
+        if (dependencies.setReferences(key(x, y), references(x, y))) {
+            tape = null; // Laid out over the old graph (e.g., a new cell in the range of a formula)
+        }
+        Formula formula = cells.get(x, y).getFormula();
+        if (formula != null && formula.ranges() > 0) {
+            rangeOwners.add(key(x, y));
+        } else {
+            rangeOwners.remove(key(x, y));
+        }
+    }
+
+    // Reevaluate the given cells and all of their transitive dependents, in dependency order. Returns false if
+    // the monitor (if any) cancelled it.
+    private boolean recalculate(Monitor monitor, long... edited) {
+        clearReports();
+        SharedSubexpression.nextRecalculation();
+        int[] nodes = new int[edited.length];
+        int count = 0;
+        for (long key : edited) {
+            int node = dependencies.node(key);
+            if (node >= 0) {
+                nodes[count++] = node;
+            } else if (lazy) {
+                defer(key);
+            } else { // Neither referencing nor referenced: only the cell itself changes
+                SCell cell = cells.getForWrite(keyX(key), keyY(key));
+                compute(cell);
+                publish(keyX(key), keyY(key), cell);
+            }
+        }
+        if (count == 0) return true;
+
+        if (monitor == null && replayTape(edited, Arrays.copyOf(nodes, count))) return true;
+
+        int[] affected = dependencies.dependentsClosure(Arrays.copyOf(nodes, count));
+        if (lazy) {
+            for (int node : affected) {
+                defer(dependencies.cell(node));
+            }
+            return true;
+        }
+        for (int node : affected) {
+            SCell cell = cellOf(node);
+            if (cell != null) cell.setDirty(); // The cached values of the affected cells are outdated
+        }
+        if (monitor != null) {
+            monitor.recalculating(Arrays.stream(affected).filter(this::owns)
+                    .mapToLong(node -> dependencies.cell(node) & COORDINATES).toArray());
+        }
+        if (monitor == null && pool != null && workbook == null && affected.length >= PARALLEL_THRESHOLD) {
+            evaluateCones(affected);
+        } else if (!evaluateInOrder(affected, monitor)) {
+            return false;
+        }
+        publishOtherSnapshots(affected);
+        return true;
+    }
+
+    // Evaluate the given nodes (the dependents of edits, whose cells are all dirty) on the pool, one task per cone
+    // of the edits (see DependencyGraph.cones). The cones with ranges or cycles update the aggregates as they are
+    // evaluated, they are evaluated in order by this thread once the others are done.
+    private void evaluateCones(int[] nodes) {
+        List<int[]> parallel = new ArrayList<>(), sequential = new ArrayList<>();
+        for (int[] cone : dependencies.cones(nodes)) {
+            boolean ranges = false;
+            for (int node : cone) {
+                ranges |= rangeOwners.contains(dependencies.cell(node));
+            }
+            if (ranges || dependencies.sort(cone) < cone.length) { // Sorted here, the graph is not thread safe
+                sequential.add(cone);
+            } else {
+                parallel.add(cone);
+            }
+        }
+        if (!parallel.isEmpty()) {
+            int[][] cones = parallel.toArray(new int[0][]);
+            pool.invoke(new ConeTask(cones, 0, cones.length));
+            for (int[] cone : cones) {
+                for (int node : cone) {
+                    publish(node); // The other cones may aggregate these cells
+                }
+            }
+        }
+        for (int[] cone : sequential) {
+            evaluateInOrder(cone);
+        }
+    }
+
+    // Evaluates sorted cones (see evaluateCones), splitting them in halves down to one cone per task. The cells
+    // were made writable by the recalculation (see recalculate), and the aggregates are not updated.
+    private class ConeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[][] cones;
+        private final int from, to;
+
+        ConeTask(int[][] cones, int from, int to) {
+            this.cones = cones;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                for (int node : cones[from]) {
+                    SCell cell = cellOf(node);
+                    if (cell != null) Ex2Sheet.this.compute(cell);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ConeTask(cones, from, mid), new ConeTask(cones, mid, to));
+            }
+        }
+    }
+
+    // Recalculate the given value edits (of the given nodes) by replaying the evaluation tape (see setTape),
+    // building it if needed. Returns false if the tape can not be used.
+    private boolean replayTape(long[] edited, int[] nodes) {
+        if (!taped || workbook != null || lazy || maxIterations > 0) return false;
+        for (long key : edited) {
+            SCell cell = cells.get(keyX(key), keyY(key));
+            if (cell != null && cell.getFormula() != null) return false; // A structural edit
+        }
+        for (int node : nodes) {
+            SCell cell = cellOf(node);
+            if (cell != null) {
+                compute(cell); // The edited inputs
+                publish(node);
+            }
+        }
+        if (tape == null) {
+            tape = EvaluationTape.build(dependencies, cells);
+            if (tape == null) return false; // A formula uses ranges, built again once it does not
+        } else {
+            for (int node : nodes) {
+                long key = dependencies.cell(node);
+                tape.load(node, cellAt(keyX(key), keyY(key)));
+            }
+        }
+        int changed = tape.replay();
+        for (int i = 0; i < changed; i++) {
+            int node = tape.changed(i);
+            SCell cell = cellOf(node); // Only the changed cells are written
+            cell.setType(tape.type(node));
+            cell.setValue(tape.value(node));
+            publish(node);
+        }
+        return true;
+    }
+
+    // Publish the snapshots of the other sheets of the workbook having cells among the given (reevaluated) nodes
+    private void publishOtherSnapshots(int[] nodes) {
+        if (workbook == null) return;
+        boolean[] touched = new boolean[workbook.sheets().size()];
+        for (int node : nodes) {
+            touched[keySheet(dependencies.cell(node))] = true;
+        }
+        for (int i = 0; i < touched.length; i++) {
+            if (touched[i] && i != index) workbook.sheet(i).publishSnapshot();
+        }
+    }
+
+    // Evaluate the given nodes (without recursion), so the references of a cell are always computed before the
+    // cell itself. The cells which are part of a cycle are marked as such (see evaluateCyclic).
+    private void evaluateInOrder(int[] nodes) {
+        evaluateInOrder(nodes, null);
+    }
+
+    // Evaluate the given nodes, reporting to the monitor (if any). Returns false if the monitor cancelled it,
+    // the nodes left are added to the batch.
+    private boolean evaluateInOrder(int[] nodes, Monitor monitor) {
+        int sorted = dependencies.sort(nodes);
+        for (int i = 0; i < nodes.length; i++) {
+            if (monitor != null && i % PROGRESS_STEP == 0) {
+                if (monitor.cancelled()) {
+                    for (int j = i; j < nodes.length; j++) {
+                        addToBatch(dependencies.cell(nodes[j])); // Still dirty
                     }
+                    return false;
                 }
+                monitor.progress(i, nodes.length);
             }
+            if (i == sorted) {
+                evaluateCyclic(Arrays.copyOfRange(nodes, sorted, nodes.length));
+                break;
+            }
+            SCell cell = cellOf(nodes[i]);
+            if (cell == null) continue; // An empty cell, nothing to compute
+            owner(dependencies.cell(nodes[i])).compute(cell);
+            publish(nodes[i]);
+        }
+        if (monitor != null) {
+            monitor.progress(nodes.length, nodes.length);
         }
+        return true;
+    }
 
-        return depthMatrix; // Return the calculated depth matrix
+    // Evaluate the given nodes, which are part of cycles or depend on them: the strongly connected components are
+    // taken after the components they reference, a cycle is marked (or iterated, see setIterative) and any other
+    // node is computed once, so it reports the error of its first reference as the recursive evaluation did
+    private void evaluateCyclic(int[] nodes) {
+        long[] byComponent = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            byComponent[i] = ((long) dependencies.component(nodes[i]) << 32) | nodes[i];
+        }
+        Arrays.sort(byComponent);
+        for (int start = 0, end; start < byComponent.length; start = end) {
+            end = start + 1;
+            while (end < byComponent.length && byComponent[end] >>> 32 == byComponent[start] >>> 32) end++;
+            int[] members = new int[end - start];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = (int) byComponent[start + i];
+            }
+            if (dependencies.inCycle(members[0]) && maxIterations > 0) {
+                iterate(members);
+            } else if (dependencies.inCycle(members[0])) {
+                for (int node : members) {
+                    markCycle(cellOf(node)); // Never empty, an empty cell can not be part of a cycle
+                    publish(node);
+                }
+            } else {
+                SCell cell = cellOf(members[0]);
+                if (cell == null) continue;
+                owner(dependencies.cell(members[0])).compute(cell);
+                publish(members[0]);
+            }
+        }
     }
 
-    // Helper method to update the depth of a cell
-    private boolean updateDepth(int x, int y, boolean[][] visited, Set<String> stack, int[][] depthMatrix) {
-        if (!isIn(x, y)) return true; // Return true if the cell is out of bounds
+    // Gauss-Seidel sweeps over the cells of a cycle, until its values settle (see setIterative)
+    private void iterate(int[] members) {
+        for (int node : members) {
+            SCell cell = cellOf(node); // Never empty, an empty cell can not be part of a cycle
+            if (cell.getType() != Ex2Utils.FORM) {
+                cell.setType(Ex2Utils.FORM);
+                cell.setValue(0);
+            } else {
+                cell.setValue(cell.getValue()); // Clean, so the other cells read its last value
+            }
+            publish(node);
+        }
 
-        String cellId = cellKey(x, y);
-        if (stack.contains(cellId)) {
-            table[x][y].setType(Ex2Utils.ERR_CYCLE_FORM); // Mark as cycle error if the cell is in the stack
-            return false;
+        int iterations = 0;
+        double change;
+        boolean failed = false;
+        do {
+            change = 0;
+            for (int node : members) {
+                SCell cell = cellOf(node);
+                double old = cell.getValue();
+                SharedSubexpression.nextRecalculation(); // Each member reads the latest values of the others
+                owner(dependencies.cell(node)).compute(cell);
+                failed |= cell.getType() != Ex2Utils.FORM; // An error, which reaches the rest of the cycle
+                change = Math.max(change, Math.abs(cell.getValue() - old)); // NaN once the values diverge
+                publish(node);
+            }
+            iterations++;
+        } while (!failed && change >= Ex2Utils.EPS && iterations < maxIterations);
+
+        List<Index2D> cells = new ArrayList<>();
+        for (int node : members) {
+            cells.add(new CellEntry(keyX(dependencies.cell(node)), keyY(dependencies.cell(node))));
+        }
+        synchronized (this) {
+            cycleReports.add(new CycleReport(cells, iterations, !failed && change < Ex2Utils.EPS, change));
         }
+    }
+
+    private synchronized void clearReports() {
+        cycleReports.clear();
+    }
 
-        if (visited[x][y]) return true; // Return true if the cell has already been visited
+    // Mark a cell as part of a cycle
+    private void markCycle(SCell cell) {
+        cell.setType(Ex2Utils.ERR_CYCLE_FORM);
+        cell.setValue(Ex2Utils.ERR_CYCLE_FORM);
+    }
 
-        visited[x][y] = true; // Mark the cell as visited
-        stack.add(cellId); // Add the cell to the stack to detect cycles
+    // Update the aggregates (of its sheet) with the freshly computed value of the cell of the given node
+    private void publish(int node) {
+        long key = dependencies.cell(node);
+        SCell cell = cellOf(node);
+        if (cell != null) owner(key).publish(keyX(key), keyY(key), cell);
+    }
 
-        String data = table[x][y].getData();
-        if (data.startsWith("=")) { // If the cell contains a formula
-            for (String ref : data.substring(1).split("[^A-Za-z0-9]")) {
-                if (ref.matches("[A-Za-z]+[0-9]+")) { // If the reference is a valid cell
-                    int[] coords = cellCoordinates(ref); // Convert the reference to coordinates
-                    if (!isIn(coords[0], coords[1])) {
-                        table[x][y].setType(Ex2Utils.ERR_FORM_FORMAT); // Mark invalid reference
-                        return false; // Stop processing further
-                    }
-                    if (!updateDepth(coords[0], coords[1], visited, stack, depthMatrix)) {
-                        return false;
-                    }
-                    depthMatrix[x][y] = Math.max(depthMatrix[x][y], depthMatrix[coords[0]][coords[1]] + 1); // Update depth
+    private void publish(int x, int y, SCell cell) {
+        aggregates.update(x, y, cell.getType(), cell.getValue());
+    }
+
+    // Evaluate the cells (of this sheet) order()[from, to) of the dependency graph, storing the given order in
+    // each of them. The aggregates are not updated, as the cells of the same depth never read each other.
+    // The cells are taken column by column, so the runs of a formula filled down are computed at once.
+    private void evaluateRange(int[] order, int from, int to, int depth) {
+        long[] keys = new long[to - from];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            if (owns(order[i])) keys[n++] = dependencies.cell(order[i]) & COORDINATES; // Not another sheet's
+        }
+        Arrays.sort(keys, 0, n);
+        for (int i = 0; i < n; i++) {
+            int x = keyX(keys[i]), y = keyY(keys[i]);
+            SCell cell = cells.getForWrite(x, y);
+            if (cell == null) continue; // An empty cell referenced by a formula
+            Formula formula = cell.getFormula();
+            int run = 1;
+            if (formula != null && formula.isColumnar()) {
+                while (i + run < n && keys[i + run] == keys[i] + run) { // The next rows of the column
+                    SCell next = cells.get(x, y + run);
+                    if (next == null || next.getFormula() == null || !formula.filledDown(next.getFormula(), run)) break;
+                    run++;
                 }
             }
+            if (run >= MIN_RUN) {
+                computeRun(formula, x, y, run, depth);
+                i += run - 1;
+            } else {
+                cell.setOrder(depth);
+                compute(cell);
+            }
         }
+    }
 
-        stack.remove(cellId); // Remove the cell from the stack after processing
-        return true;
+    // Compute the n cells from (x, y) down, holding the given formula filled down (see Formula.evaluateColumn).
+    // The cells whose references are not all clean numbers, and those the columnar evaluation fails for, are
+    // computed one by one (as they report an error).
+    private void computeRun(Formula formula, int x, int y, int n, int depth) {
+        double[][] refs = new double[formula.size()][n];
+        boolean[] scalar = new boolean[n];
+        for (int i = 0; i < formula.size(); i++) {
+            double[] values = refs[i];
+            for (int k = 0; k < n; k++) {
+                int refX = formula.refX(i), refY = formula.refY(i) + k;
+                SCell ref = isIn(refX, refY) ? cellAt(refX, refY) : null;
+                if (ref == null || ref.isDirty() || (ref.getType() != Ex2Utils.NUMBER && ref.getType() != Ex2Utils.FORM)) {
+                    scalar[k] = true;
+                } else {
+                    values[k] = ref.getValue();
+                }
+            }
+        }
+        double[] results = new double[n];
+        formula.evaluateColumn(refs, n, results, scalar);
+        for (int k = 0; k < n; k++) {
+            SCell cell = cells.getForWrite(x, y + k);
+            cell.setOrder(depth);
+            if (scalar[k]) {
+                compute(cell);
+            } else {
+                cell.setType(Ex2Utils.FORM);
+                cell.setValue(results[k]);
+            }
+        }
+    }
+
+    // Evaluates a part of a level, splitting it in halves while it is large enough to keep several threads busy
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] order;
+        private final int from, to, depth, grain;
+
+        LevelTask(int[] order, int from, int to, int depth, int grain) {
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                evaluateRange(order, from, to, depth);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LevelTask(order, from, mid, depth, grain), new LevelTask(order, mid, to, depth, grain));
+            }
+        }
+    }
+
+    // Evaluate the entire sheet (its stored cells), level by level of the (cached) depth of the cells.
+    // In a workbook, the cells of the other sheets depending on this one are reevaluated as well.
+    @Override
+    public void eval() {
+        tape = null; // The data of the cells may have been changed directly
+        refreshDependencies();
+        if (lazy) { // Computed when they are read (see setLazy)
+            cells.forEach((x, y, cell) -> defer(key(x, y)));
+        } else {
+            evalCells();
+        }
+        if (workbook != null) {
+            recalculateDependentsElsewhere();
+        }
+        publishSnapshot();
+    }
+
+    // Update the references of the cells whose data may have been changed directly (through Cell.setData)
+    void refreshDependencies() {
+        if (sharing) {
+            relink(); // The data may have been changed directly as well
+        }
+        cells.forEach((x, y, cell) -> {
+            if (cell.isDirty()) {
+                updateDependencies(x, y);
+            }
+        });
+    }
+
+    // Evaluate all the cells of this sheet, the cells of other sheets it references must be up to date (see
+    // Workbook.eval). The references must be refreshed, and the dependency graph analyzed.
+    void evalCells() {
+        evalUnreferenced();
+        for (int depth = 0; depth < dependencies.levels(); depth++) {
+            evalLevel(depth);
+        }
+        evalCycles();
+    }
+
+    // Mark all the cells as dirty, and evaluate the cells which are not part of the dependency graph
+    void evalUnreferenced() {
+        clearReports();
+        SharedSubexpression.nextRecalculation();
+        cells.forEach((x, y, cell) -> cells.getForWrite(x, y).setDirty()); // Recompute every cell
+
+        aggregates.clear(); // Rebuilt from the recomputed values
+        cells.forEach((x, y, stored) -> {
+            if (dependencies.node(key(x, y)) < 0) { // Neither referencing nor referenced: depth 0
+                SCell cell = cells.getForWrite(x, y);
+                cell.setOrder(0);
+                compute(cell);
+                publish(x, y, cell);
+            }
+        });
+    }
+
+    // Evaluate the cells of this sheet with the given depth
+    void evalLevel(int depth) {
+        int[] order = dependencies.order();
+        int from = dependencies.levelStart(depth), to = dependencies.levelStart(depth + 1);
+        if (pool != null && to - from >= PARALLEL_THRESHOLD) {
+            // The cells of the same depth do not depend on each other, invoke waits for the whole level
+            int grain = Math.max(PARALLEL_THRESHOLD / 4, (to - from) / (4 * pool.getParallelism()));
+            pool.invoke(new LevelTask(order, from, to, depth, grain));
+        } else {
+            evaluateRange(order, from, to, depth);
+        }
+        for (int i = from; i < to; i++) {
+            if (owns(order[i])) publish(order[i]); // The next levels may aggregate this one
+        }
+    }
+
+    // Evaluate the cells of this sheet which are part of a cycle (or depend on one), see evaluateCyclic
+    void evalCycles() {
+        evalCycles(this::owns);
+    }
+
+    // Evaluate the cells of the given nodes which are part of a cycle (or depend on one), for cycles through
+    // several sheets of a workbook
+    void evalCycles(IntPredicate nodes) {
+        int[] order = dependencies.order();
+        int[] cyclic = IntStream.range(dependencies.levelStart(dependencies.levels()), order.length)
+                .map(i -> order[i]).filter(nodes).toArray();
+        for (int node : cyclic) {
+            SCell cell = cellOf(node);
+            if (cell != null) cell.setOrder(Ex2Utils.ERR_CYCLE_FORM);
+        }
+        evaluateCyclic(cyclic);
+    }
+
+    // Reevaluate the cells of the other sheets of the workbook depending on this one (and, through them, the
+    // cells of this sheet depending on those)
+    private void recalculateDependentsElsewhere() {
+        int[] own = Arrays.stream(dependencies.order()).filter(this::owns).toArray();
+        int[] others = Arrays.stream(dependencies.dependentsClosure(own)).filter(node -> !owns(node)).toArray();
+        if (others.length == 0) return;
+        int[] affected = dependencies.dependentsClosure(others);
+        for (int node : affected) {
+            if (lazy) {
+                defer(dependencies.cell(node));
+            } else {
+                SCell cell = cellOf(node);
+                if (cell != null) cell.setDirty();
+            }
+        }
+        if (lazy) return;
+        SharedSubexpression.nextRecalculation(); // The other sheets changed since this one was computed
+        evaluateInOrder(affected);
+        publishOtherSnapshots(affected);
+    }
+
+    // Evaluate a specific cell at position (x, y), a clean cell returns its cached value.
+    // Reading clean cells does not modify anything, so while no cell is being modified any number of threads
+    // may call it at once, without locking.
+    @Override
+    public String eval(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL; // Return empty cell if out of bounds
+
+        SCell cell = cells.get(x, y);
+        if (cell == null) return Ex2Utils.EMPTY_CELL; // Never written
+        return cell.isDirty() ? evalDirty(x, y) : format(cell); // The cached value, until the cell becomes dirty again
+    }
+
+    // Evaluate a dirty cell (only when its data was changed directly, see set), one thread at a time
+    private synchronized String evalDirty(int x, int y) {
+        SCell cell = cells.getForWrite(x, y);
+        if (cell.isDirty()) {
+            SharedSubexpression.nextRecalculation(); // The data of the cell may have been changed directly
+            int node = dependencies.node(key(x, y));
+            if (node < 0) {
+                compute(cell); // References nothing
+                publish(x, y, cell);
+            } else {
+                // The dirty cells this cell depends on (only when the data was changed directly, see set)
+                evaluateInOrder(dependencies.referencesClosure(node, ref -> {
+                    SCell refCell = cellOf(ref);
+                    return refCell != null && refCell.isDirty();
+                }));
+            }
+        }
+        return format(cell);
+    }
+
+    // Compute (and cache) the value of a cell whose references are all clean
+    private void compute(SCell cell) {
+        if (cell.getType() == Ex2Utils.TEXT) {
+            cell.setValue(0); // Text has no numeric value, it is presented by its data
+        } else {
+            cell.setValue(cell.evaluate(this, cell)); // Numbers and formulas (the type of the cell marks errors)
+        }
+    }
+
+    // Check if the coordinates (xx, yy) are within the sheet's bounds
+    @Override
+    public boolean isIn(int xx, int yy) {
+        return isIn(cells, xx, yy);
+    }
+
+    static boolean isIn(CellStore cells, int xx, int yy) {
+        return xx >= 0 && yy >= 0 && xx < cells.width() && yy < cells.height(); // Check if coordinates are valid
+    }
+
+    // Calculate the depth matrix for evaluating formulas and dependencies (cached until the references change)
+    @Override
+    public int[][] depth() {
+        int[][] depthMatrix = depth(dependencies, tag, width(), height());
+        cells.forEach((x, y, cell) -> cells.getForWrite(x, y).setOrder(depthMatrix[x][y]));
+        return depthMatrix; // Return the calculated depth matrix
+    }
+
+    // The depths of the nodes of the sheet with the given tag (see key)
+    static int[][] depth(DependencyGraph dependencies, long tag, int width, int height) {
+        int[][] depthMatrix = new int[width][height]; // Initialize depth matrix (0 outside of the graph)
+        for (int node = 0; node < dependencies.size(); node++) {
+            long key = dependencies.cell(node);
+            if ((key & ~COORDINATES) != tag) continue; // A cell of another sheet of the workbook
+            depthMatrix[keyX(key)][keyY(key)] = dependencies.depth(node); // ERR_CYCLE_FORM for cycles
+        }
+        return depthMatrix;
     }
 
     // Load sheet data from a file
@@ -189,16 +1113,20 @@ public class Ex2Sheet implements Sheet {
             int newWidth = Integer.parseInt(dimensions[0]);
             int newHeight = Integer.parseInt(dimensions[1]);
 
-            if (newWidth <= 0 || newHeight <= 0) {
+            if (newWidth <= 0 || newHeight <= 0 || newWidth > MAX_WIDTH) {
                 throw new IOException("Invalid sheet dimensions in file."); // Handle invalid dimensions
             }
 
-            table = new SCell[newWidth][newHeight]; // Initialize the table with new dimensions
-            for (int i = 0; i < newWidth; i++) {
-                for (int j = 0; j < newHeight; j++) {
-                    table[i][j] = new SCell(""); // Initialize each cell with empty data
-                }
+            if (workbook == null) {
+                dependencies = new DependencyGraph();
+            } else { // The graph is shared with the other sheets, which may still reference these cells
+                cells.forEach((x, y, cell) -> dependencies.setReferences(key(x, y), new long[0]));
             }
+            cells = cells.newStore(newWidth, newHeight); // Initialize the table with new dimensions
+            deferredStart = deferredEnd = 0;
+            rangeOwners = new HashSet<>();
+            aggregates = new Aggregates(newWidth, newHeight);
+            batchSize = 0; // The whole sheet is evaluated below
 
             int rowIndex = 0;
             String line;
@@ -214,7 +1142,9 @@ public class Ex2Sheet implements Sheet {
                 }
 
                 for (int j = 0; j < newHeight; j++) {
-                    table[rowIndex][j].setData(row[j]); // Set data for each cell in the row
+                    if (!row[j].isEmpty() && rowIndex < newWidth) {
+                        cells.getOrCreate(rowIndex, j).setData(row[j]); // Set data for each (non empty) cell in the row
+                    }
                 }
                 rowIndex++;
             }
@@ -223,7 +1153,10 @@ public class Ex2Sheet implements Sheet {
                 throw new IOException("Data row count mismatch. Expected " + newWidth + ", but got " + rowIndex + "."); // Handle row count mismatch
             }
 
-            eval(); // Evaluate the sheet after loading data
+            if (workbook != null) {
+                workbook.sheetLoaded(this); // The ranges naming this sheet may contain other cells now
+            }
+            eval(); // Evaluate the sheet after loading data (building the dependency graph as well)
         } catch (IOException | NumberFormatException e) {
             throw new IOException("Error loading the sheet: " + e.getMessage(), e); // Handle errors during loading
         }
@@ -232,15 +1165,20 @@ public class Ex2Sheet implements Sheet {
     // Save the sheet data to a file
     @Override
     public void save(String fileName) throws IOException {
+        save(cells, fileName);
+    }
+
+    static void save(CellStore cells, String fileName) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            writer.write(width() + "," + height()); // Write sheet dimensions
+            writer.write(cells.width() + "," + cells.height()); // Write sheet dimensions
             writer.newLine();
 
-            for (int i = 0; i < width(); i++) {
+            for (int i = 0; i < cells.width(); i++) {
                 StringBuilder row = new StringBuilder();
-                for (int j = 0; j < height(); j++) {
-                    row.append(table[i][j].getData()); // Append cell data to the row
-                    if (j < height() - 1) {
+                for (int j = 0; j < cells.height(); j++) {
+                    SCell cell = cells.get(i, j);
+                    row.append(cell == null ? "" : cell.getData()); // Append cell data to the row
+                    if (j < cells.height() - 1) {
                         row.append(","); // Add a separator if it's not the last cell
                     }
                 }
@@ -252,12 +1190,12 @@ public class Ex2Sheet implements Sheet {
         }
     }
 
-    // Convert string coordinates (e.g., "A1") to integer indices
-    public int[] cellCoordinates(String cords) {
-        String column = cords.replaceAll("[^A-Za-z]", ""); // Extract column letters
-        String row = cords.replaceAll("[^0-9]", ""); // Extract row number
-        int colIndex = column.charAt(0) - 'A'; // Convert column letter to index
-        int rowIndex = Integer.parseInt(row); // Convert row string to integer
-        return new int[]{colIndex, rowIndex};
+    // Convert string coordinates (e.g., "A1" or "AB12") to integer indices, {-1, -1} if they are invalid
+    public static int[] cellCoordinates(String cords) {
+        long packed = CellEntry.parse(cords, 0, cords.length()); // Scans the letters and digits in place
+        if (packed < 0) {
+            return new int[]{-1, -1};
+        }
+        return new int[]{CellEntry.packedX(packed), CellEntry.packedY(packed)};
     }
 }
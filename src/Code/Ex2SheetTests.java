@@ -5,6 +5,11 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -118,5 +123,912 @@ public class Ex2SheetTests {
     void testInvalidFormulaFormat() {
         sheet.set(0, 0, "=5++");
         assertEquals("ERR_FORM!", sheet.value(0, 0));
+
+        sheet.set(3, 2, "=(D2"); // Its references are checked first: a cycle wins over the invalid formula
+        assertEquals("ERR_CYCLE!", sheet.value(3, 2));
+        sheet.eval();
+        assertEquals("ERR_CYCLE!", sheet.value(3, 2));
+    }
+
+    @Test
+    void testSetUpdatesDependentTypes() {
+        sheet.set(0, 0, "=A1");
+        sheet.set(0, 1, "=A0");
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get(0, 0).getType());
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get(0, 1).getType());
+
+        sheet.set(0, 1, "5"); // Breaking the cycle should fix the dependent cell as well
+        assertEquals(Ex2Utils.FORM, sheet.get(0, 0).getType());
+        assertEquals("5.0", sheet.value(0, 0));
+    }
+
+    @Test
+    void testDependingOnCycleReportsFirstError() {
+        Ex2Sheet edited = new Ex2Sheet(9, 9);
+        edited.setTape(true);
+        edited.set(0, 2, "=B5/C7"); // B5 is empty, so its error comes first
+        edited.set(2, 7, "=max(max(max(D0,1),2),3)");
+        edited.set(3, 0, "=max(-(D0-4),1)"); // Self reference
+        assertEquals("ERR_CYCLE!", edited.value(3, 0));
+        assertEquals("ERR_CYCLE!", edited.value(2, 7));
+        assertEquals("ERR_FORM!", edited.value(0, 2));
+
+        Ex2Sheet evaluated = new Ex2Sheet(9, 9);
+        evaluated.set(3, 0, "=max(-(D0-4),1)");
+        evaluated.set(2, 7, "=max(max(max(D0,1),2),3)");
+        evaluated.set(0, 2, "=B5/C7");
+        evaluated.eval(); // The whole sheet, through evalCycles
+        for (int[] xy : new int[][]{{3, 0}, {2, 7}, {0, 2}}) {
+            assertEquals(edited.value(xy[0], xy[1]), evaluated.value(xy[0], xy[1])); // set and eval agree
+        }
+
+        edited.set(1, 5, "2"); // Replayed by the tape: now C7 comes first
+        assertEquals("ERR_CYCLE!", edited.value(0, 2));
+        edited.set(1, 5, "text");
+        assertEquals("ERR_FORM!", edited.value(0, 2));
+    }
+
+    @Test
+    void testFormulaCompiledOnce() {
+        sheet.set(0, 0, "2");
+        sheet.set(1, 0, "=a0*a0+1");
+        Formula compiled = sheet.get(1, 0).getFormula();
+        assertEquals("5.0", sheet.value(1, 0));
+
+        sheet.set(0, 0, "3"); // Changing a reference does not recompile the formula
+        assertSame(compiled, sheet.get(1, 0).getFormula());
+        assertEquals("10.0", sheet.value(1, 0));
+    }
+
+    @Test
+    void testFormulaGrammar() {
+        sheet.set(0, 0, "4");
+        sheet.set(0, 1, "=-A0*(2+3) - -1");
+        assertEquals("-19.0", sheet.value(0, 1));
+        sheet.set(0, 2, "=max(A0, 2*A0, 1) + min(3, a0)");
+        assertEquals("11.0", sheet.value(0, 2));
+        sheet.set(0, 3, "=pow(A0,2)+sin(0)+cos(0)");
+        assertEquals("17.0", sheet.value(0, 3));
+        sheet.set(0, 4, "=if(A0-4, 1/0, 2.5e1)");
+        assertEquals("25.0", sheet.value(0, 4));
+
+        sheet.set(1, 0, "=A0/0");
+        assertEquals("ERR_FORM!", sheet.value(1, 0));
+        sheet.set(1, 1, "=foo(A0)");
+        assertEquals("ERR_FORM!", sheet.value(1, 1));
+        sheet.set(1, 2, "=(A0+1");
+        assertEquals("ERR_FORM!", sheet.value(1, 2));
+        sheet.set(1, 3, "=");
+        assertEquals("ERR_FORM!", sheet.value(1, 3));
+    }
+
+    @Test
+    void testCachedValues() {
+        sheet.set(0, 0, "3");
+        sheet.set(0, 1, "=A0*2");
+        assertFalse(sheet.get(0, 0).isDirty());
+        assertFalse(sheet.get(0, 1).isDirty());
+
+        sheet.get(0, 0).setData("4"); // Bypasses set(), so the dependent keeps its cached value
+        assertTrue(sheet.get(0, 0).isDirty());
+        assertEquals("6.0", sheet.value(0, 1));
+
+        sheet.eval(); // A full evaluation recomputes every cell
+        assertEquals("8.0", sheet.value(0, 1));
+    }
+
+    @Test
+    void testLongDependencyChain() {
+        int length = 20000;
+        Ex2Sheet column = new Ex2Sheet(1, length);
+        for (int y = 1; y < length; y++) {
+            column.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        column.set(0, 0, "1"); // Reevaluates the whole chain
+        assertEquals(length + ".0", column.value(0, length - 1));
+
+        column.eval();
+        assertEquals(length - 1, column.get(0, length - 1).getOrder());
+        assertEquals(length - 1, column.depth()[0][length - 1]);
+    }
+
+    @Test
+    void testParallelEvaluation() {
+        Ex2Sheet wide = new Ex2Sheet(3, 5000);
+        Map<CellEntry, String> data = new HashMap<>();
+        for (int y = 0; y < wide.height(); y++) {
+            data.put(new CellEntry(0, y), "" + y);
+            data.put(new CellEntry(1, y), "=A" + y + "*2");
+            data.put(new CellEntry(2, y), "=B" + y + "+A" + y);
+        }
+        wide.setAll(data);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        wide.setParallelism(pool);
+        wide.eval();
+        pool.shutdown();
+
+        for (int y = 0; y < wide.height(); y++) {
+            assertEquals((3.0 * y) + "", wide.value(2, y));
+        }
+        assertEquals(2, wide.get(2, 0).getOrder());
+    }
+
+    @Test
+    void testPrimitiveValues() {
+        sheet.set(0, 0, "0.1");
+        sheet.set(0, 1, "=A0*3");
+        assertEquals(0.1 * 3, sheet.get(0, 1).getValue());
+        assertEquals(String.valueOf(0.1 * 3), sheet.value(0, 1));
+
+        sheet.set(1, 0, "text");
+        sheet.set(1, 1, "=B0+1"); // Text can not be used in a formula
+        assertEquals("ERR_FORM!", sheet.value(1, 1));
+        sheet.set(1, 2, "=B1+1"); // Neither can an invalid formula
+        assertEquals("ERR_FORM!", sheet.value(1, 2));
+    }
+
+    @Test
+    void testDepth() {
+        sheet.set(0, 0, "=A1");
+        sheet.set(0, 1, "=A0");
+        sheet.set(0, 2, "=A0+1");
+        sheet.set(1, 0, "=3");
+        sheet.set(1, 1, "=B0*2");
+        sheet.set(1, 2, "=B1+B0");
+        sheet.set(2, 2, "=C2"); // Self reference
+
+        int[][] depth = sheet.depth();
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, depth[0][0]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, depth[0][1]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, depth[0][2]); // Depends on a cycle
+        assertEquals(0, depth[1][0]);
+        assertEquals(1, depth[1][1]);
+        assertEquals(2, depth[1][2]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, depth[2][2]);
+        assertEquals(0, depth[3][3]);
+
+        sheet.set(0, 1, "7"); // Breaks the cycle
+        assertEquals(2, sheet.depth()[0][2]);
+        assertEquals("8.0", sheet.value(0, 2));
+    }
+
+    @Test
+    void testRangeAggregates() {
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "2");
+        sheet.set(0, 2, "=A0+A1");
+        sheet.set(0, 3, "text"); // Skipped by the aggregates
+        sheet.set(1, 0, "10");
+
+        sheet.set(2, 0, "=sum(A0:A5)");
+        sheet.set(2, 1, "=count(A0:A5)");
+        sheet.set(2, 2, "=avg(A0:A3, B0)");
+        sheet.set(2, 3, "=max(A0:B5) - min(A0:A5, 0.5)");
+        sheet.set(2, 4, "=SUM(A0:B1, 100) + COUNT(B0, 1)");
+        assertEquals("6.0", sheet.value(2, 0));
+        assertEquals("3.0", sheet.value(2, 1));
+        assertEquals("4.0", sheet.value(2, 2));
+        assertEquals("9.5", sheet.value(2, 3));
+        assertEquals("115.0", sheet.value(2, 4));
+
+        sheet.set(0, 1, "5"); // Updates the sums of every range holding A1
+        assertEquals("12.0", sheet.value(2, 0));
+        assertEquals("5.5", sheet.value(2, 2));
+        assertEquals("118.0", sheet.value(2, 4));
+
+        sheet.set(0, 4, "=C0"); // A cycle through a range
+        assertEquals("ERR_CYCLE!", sheet.value(2, 0));
+        sheet.set(0, 4, "=1/0");
+        assertEquals("ERR_FORM!", sheet.value(2, 0));
+        sheet.set(0, 4, "");
+        assertEquals("12.0", sheet.value(2, 0));
+
+        sheet.set(3, 0, "=sum(A0:Z9)"); // Out of the sheet
+        assertEquals("ERR_FORM!", sheet.value(3, 0));
+        sheet.set(3, 1, "=A0:A2");
+        assertEquals("ERR_FORM!", sheet.value(3, 1));
+        sheet.set(3, 2, "=min(D3:D5)"); // No numbers
+        assertEquals("ERR_FORM!", sheet.value(3, 2));
+    }
+
+    @Test
+    void testRangeSumsIndependentOfEditHistory() {
+        sheet.set(1, 0, "=sum(A0:A2)");
+        sheet.set(0, 0, "1e17");
+        sheet.set(0, 1, "1");
+        sheet.set(0, 0, "0"); // The 1 is not lost to the rounding of 1e17 + 1
+        assertEquals("1.0", sheet.value(1, 0));
+
+        sheet.set(0, 0, "0.1");
+        sheet.set(0, 1, "0.2");
+        sheet.set(0, 1, "");
+        assertEquals("0.1", sheet.value(1, 0));
+        sheet.eval();
+        assertEquals("0.1", sheet.value(1, 0));
+
+        Ex2Sheet tall = new Ex2Sheet(2, 10000); // Across several blocks of rows
+        tall.set(1, 0, "=sum(A1:A9999)");
+        tall.set(1, 1, "=sum(A5000:A9000)");
+        tall.set(0, 0, "1e17"); // Outside of both ranges
+        for (int y = 1; y < 10000; y += 7) {
+            tall.set(0, y, "" + (y % 10) / 10.0);
+        }
+        String all = tall.value(1, 0), part = tall.value(1, 1);
+        for (int y = 1; y < 10000; y += 7) { // The same values again, in the other order
+            tall.set(0, y, "1e16");
+        }
+        for (int y = 9997; y > 0; y -= 7) {
+            tall.set(0, y, "" + (y % 10) / 10.0);
+        }
+        assertEquals(all, tall.value(1, 0));
+        assertEquals(part, tall.value(1, 1));
+        tall.eval();
+        assertEquals(all, tall.value(1, 0));
+        assertEquals(part, tall.value(1, 1));
+    }
+
+    @Test
+    void testBatchEdits() {
+        sheet.set(1, 0, "=A0+A1");
+        sheet.beginBatch();
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "3");
+        assertTrue(sheet.get(0, 0).isDirty()); // Not evaluated before the commit
+        sheet.commitBatch();
+        assertFalse(sheet.get(1, 0).isDirty());
+        assertEquals("5.0", sheet.value(1, 0));
+
+        Map<Index2D, String> cells = new HashMap<>();
+        for (int y = 0; y < 6; y++) {
+            cells.put(new CellEntry(2, y), "=" + y + "*2");
+            cells.put(new CellEntry(3, y), "=C" + y + "+1");
+        }
+        cells.put(new CellEntry(0, 0), "10");
+        sheet.setAll(cells);
+        assertEquals("11.0", sheet.value(3, 5));
+        assertEquals("13.0", sheet.value(1, 0));
+
+        assertThrows(IllegalStateException.class, () -> sheet.commitBatch());
+    }
+
+    @Test
+    void testMultiLetterColumns() {
+        assertEquals("A0", new CellEntry(0, 0).toString());
+        assertEquals("Z3", new CellEntry(25, 3).toString());
+        assertEquals("AA12", new CellEntry(26, 12).toString());
+        assertEquals("ZZ1", new CellEntry(26 * 27 - 1, 1).toString());
+        assertEquals("AAA1", new CellEntry(26 * 27, 1).toString());
+        assertArrayEquals(new int[]{27, 5}, Ex2Sheet.cellCoordinates("ab5"));
+        assertArrayEquals(new int[]{-1, -1}, Ex2Sheet.cellCoordinates("5A"));
+
+        Ex2Sheet wide = new Ex2Sheet(800, 2);
+        wide.set(27, 1, "7");
+        wide.set(799, 0, "=AB1*2+sum(Z0:AB1)");
+        assertEquals("21.0", wide.value(799, 0));
+        assertSame(wide.get(799, 0), wide.get(new CellEntry(799, 0).toString()));
+        assertNull(wide.get("A"));
+        assertNull(wide.get("ZZZZ1"));
+    }
+
+    @Test
+    void testSparseSheet() {
+        Ex2Sheet huge = new Ex2Sheet(1_000_000, 1_000); // Only the written chunks are allocated
+        String last = CellEntry.columnName(999_999);
+        huge.set(999_999, 999, "5");
+        huge.set(0, 0, "=sum(" + last + "0:" + last + "999)+" + last + "999");
+        assertEquals("10.0", huge.value(0, 0));
+        assertEquals("", huge.value(500_000, 500));
+
+        huge.set(999_999, 3, "2"); // A new cell inside the range of an existing formula
+        assertEquals("12.0", huge.value(0, 0));
+        huge.set(999_999, 999, "1");
+        assertEquals("4.0", huge.value(0, 0));
+
+        huge.set(1, 1, "=C7"); // An empty cell
+        assertEquals(Ex2Utils.ERR_FORM, huge.value(1, 1));
+    }
+
+    @Test
+    void testOffHeapSheet() throws IOException {
+        Ex2Sheet offHeap = Ex2Sheet.offHeap(100, 100);
+        offHeap.set(0, 0, "5");
+        offHeap.set(0, 1, "2.50");
+        offHeap.set(0, 2, "=A0*A1+sum(A0:A1)");
+        offHeap.set(1, 0, "text");
+        offHeap.set(1, 1, "=B0");
+        offHeap.set(1, 2, "=B3");
+        offHeap.set(1, 3, "=B2");
+        assertEquals("5", offHeap.get(0, 0).getData());
+        assertEquals("2.50", offHeap.get(0, 1).getData());
+        assertEquals("20.0", offHeap.value(0, 2));
+        assertEquals("text", offHeap.value(1, 0));
+        assertEquals(Ex2Utils.ERR_FORM, offHeap.value(1, 1));
+        assertEquals(Ex2Utils.ERR_CYCLE, offHeap.value(1, 2));
+        assertEquals("", offHeap.value(99, 99));
+
+        String longText = new String(new char[1000]).replace((char) 0, 'x');
+        for (int i = 0; i < 3000; i++) {
+            offHeap.set(2, 0, longText + i); // Replaced texts are eventually compacted
+        }
+        assertEquals(longText + 2999, offHeap.value(2, 0));
+        assertEquals("text", offHeap.get(1, 0).getData());
+
+        File file = new File("offheap_test.csv");
+        offHeap.save(file.getAbsolutePath());
+        offHeap.load(file.getAbsolutePath());
+        assertEquals("20.0", offHeap.value(0, 2));
+        assertEquals(longText + 2999, offHeap.value(2, 0));
+        file.delete();
+    }
+
+    @Test
+    void testEmptyCellFlyweight() {
+        assertSame(SCell.EMPTY, sheet.get(4, 4)); // Nothing is allocated for the empty cells
+        assertSame(SCell.EMPTY, sheet.get("E5"));
+        assertEquals("", sheet.get(4, 4).getData());
+        assertEquals(Ex2Utils.TEXT, sheet.get(4, 4).getType());
+        assertThrows(UnsupportedOperationException.class, () -> sheet.get(4, 4).setData("1"));
+
+        sheet.set(4, 4, "1");
+        assertNotSame(SCell.EMPTY, sheet.get(4, 4));
+        assertEquals("1.0", sheet.value(4, 4));
+        assertEquals("", sheet.get(3, 3).getData());
+        assertEquals(Ex2Utils.TEXT, new SCell("abc").getType());
+        assertEquals(Ex2Utils.NUMBER, new SCell(" -2.5").getType());
+        assertEquals(Ex2Utils.NUMBER, new SCell("NaN").getType());
+    }
+
+    @Test
+    void testSnapshots() throws InterruptedException {
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0*2");
+        sheet.set(2, 2, "label");
+        Sheet before = sheet.snapshot();
+        sheet.set(0, 0, "5");
+        sheet.set(2, 2, "renamed");
+        assertEquals("2.0", before.value(0, 1)); // Unaffected by the later edits
+        assertEquals("1", before.get(0, 0).getData());
+        assertEquals("label", before.value(2, 2));
+        assertEquals("renamed", sheet.value(2, 2));
+        assertEquals("10.0", sheet.value(0, 1));
+        assertEquals("10.0", sheet.snapshot().value(0, 1));
+        assertEquals(1, before.depth()[0][1]);
+        assertThrows(UnsupportedOperationException.class, () -> before.set(0, 0, "3"));
+        assertThrows(UnsupportedOperationException.class, () -> before.get(0, 0).setData("3"));
+
+        sheet.beginBatch();
+        sheet.set(0, 0, "7");
+        assertEquals("10.0", sheet.snapshot().value(0, 1)); // A batch is published when committed
+        sheet.commitBatch();
+        assertEquals("14.0", sheet.snapshot().value(0, 1));
+
+        // A reader never sees a half recalculated sheet
+        boolean[] consistent = {true};
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 20000; i++) {
+                Sheet snapshot = sheet.snapshot();
+                double a = Double.parseDouble(snapshot.value(0, 0));
+                consistent[0] &= Double.parseDouble(snapshot.value(0, 1)) == 2 * a;
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20000; i++) {
+            sheet.set(0, 0, "" + i);
+        }
+        reader.join();
+        assertTrue(consistent[0]);
+    }
+
+    @Test
+    void testConcurrentEdits() throws InterruptedException {
+        int writers = 4, rows = 2000;
+        ConcurrentSheet shared = new ConcurrentSheet(writers + 1, rows);
+        for (int w = 0; w < writers; w++) {
+            String column = CellEntry.columnName(w);
+            shared.set(writers, w, "=sum(" + column + "0:" + column + (rows - 1) + ")");
+        }
+
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            int x = w;
+            threads[w] = new Thread(() -> { // Each writer edits its own column
+                for (int y = 0; y < rows; y++) {
+                    shared.set(x, y, "" + (x + 1));
+                }
+            });
+            threads[w].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        shared.flush();
+
+        for (int w = 0; w < writers; w++) {
+            assertEquals((double) (w + 1) * rows + "", shared.value(writers, w));
+        }
+        assertEquals("3.0", shared.value(2, rows - 1));
+        assertThrows(UnsupportedOperationException.class, () -> shared.get(0, 0).setData("1"));
+    }
+
+    @Test
+    void testConcurrentCones() throws InterruptedException {
+        int writers = 4, rows = 400;
+        Ex2Sheet chains = new Ex2Sheet(writers + 1, rows);
+        chains.setParallelism(new ForkJoinPool(4));
+        for (int w = 0; w < writers; w++) { // An independent chain per column
+            chains.set(w, 0, "0");
+            for (int y = 1; y < rows; y++) {
+                chains.set(w, y, "=" + CellEntry.columnName(w) + (y - 1) + "+1");
+            }
+        }
+        chains.set(writers, 0, "=sum(A0:A2)"); // The cone of A0 holds a range: evaluated in order
+        chains.beginBatch();
+        for (int w = 0; w < writers; w++) {
+            chains.set(w, 0, "" + w);
+        }
+        chains.commitBatch(); // The other cones on the pool
+        for (int w = 0; w < writers; w++) {
+            assertEquals((double) (w + rows - 1) + "", chains.value(w, rows - 1));
+        }
+        assertEquals("3.0", chains.value(writers, 0));
+
+        ConcurrentSheet shared = new ConcurrentSheet(chains);
+
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            int x = w;
+            threads[w] = new Thread(() -> { // Each writer edits the head of its chain, the batches merge them
+                for (int i = 1; i <= 100; i++) {
+                    shared.set(x, 0, "" + (x * 1000 + i));
+                }
+            });
+            threads[w].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        shared.flush();
+
+        for (int w = 0; w < writers; w++) {
+            assertEquals((double) (w * 1000 + 100 + rows - 1) + "", shared.value(w, rows - 1));
+        }
+        assertEquals("303.0", shared.value(writers, 0));
+    }
+
+    @Test
+    void testConcurrentEvaluation() throws InterruptedException {
+        Ex2Sheet shared = new Ex2Sheet(3, 500);
+        for (int y = 0; y < shared.height(); y++) {
+            shared.set(0, y, "" + y);
+            shared.set(1, y, "=max(A" + y + ",1)*2+if(A" + y + ",1,0)");
+            shared.set(2, y, "=B" + y + "-A" + y);
+        }
+        for (int y = 0; y < shared.height(); y++) { // Dirty, computed by the first thread reading them
+            shared.get(1, y).setData("=max(A" + y + ",1)*2+if(A" + y + ",1,0)");
+            shared.get(2, y).setData("=B" + y + "-A" + y);
+        }
+
+        boolean[] correct = new boolean[4];
+        Thread[] threads = new Thread[correct.length];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                boolean ok = true;
+                for (int round = 0; round < 20; round++) {
+                    for (int y = 0; y < shared.height(); y++) {
+                        double expected = Math.max(y, 1) * 2 + (y == 0 ? 0 : 1) - y;
+                        ok &= shared.eval(2, y).equals(expected + "");
+                    }
+                }
+                correct[id] = ok;
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (boolean ok : correct) {
+            assertTrue(ok);
+        }
+    }
+
+    @Test
+    void testWorkbook() {
+        Workbook book = new Workbook();
+        Ex2Sheet data = book.addSheet("Data", 2, 10);
+        Ex2Sheet report = book.addSheet("Report", 3, 3);
+        Ex2Sheet other = book.addSheet("Other", 2, 2);
+        for (int y = 0; y < 10; y++) {
+            data.set(0, y, "" + y);
+        }
+        report.set(0, 0, "=Data!A3*2");
+        report.set(1, 0, "=sum(DATA!A0:A9)+A0");
+        report.set(2, 0, "=Missing!A0");
+        other.set(0, 0, "7");
+        assertEquals("6.0", report.value(0, 0));
+        assertEquals("51.0", report.value(1, 0));
+        assertEquals(Ex2Utils.ERR_FORM, report.value(2, 0));
+
+        Sheet reportSnapshot = report.snapshot(), otherSnapshot = other.snapshot();
+        data.set(0, 3, "10"); // Only the dependents in the other sheets are reevaluated
+        assertEquals("20.0", report.value(0, 0));
+        assertEquals("72.0", report.value(1, 0));
+        assertNotSame(reportSnapshot, report.snapshot());
+        assertEquals("72.0", report.snapshot().value(1, 0));
+        assertSame(otherSnapshot, other.snapshot());
+
+        data.set(1, 9, "100"); // A new cell in a range of another sheet
+        report.set(1, 1, "=sum(Data!A0:B9)");
+        assertEquals("152.0", report.value(1, 1));
+        data.set(1, 9, "1");
+        assertEquals("53.0", report.value(1, 1));
+
+        book.addSheet("Missing", 1, 1).set(0, 0, "5");
+        assertEquals("5.0", report.value(2, 0));
+
+        data.set(1, 0, "=Report!A0+1"); // Data and Report use each other, without a cycle of cells
+        other.set(1, 1, "=Data!B0");
+        book.eval();
+        assertEquals("20.0", report.value(0, 0));
+        assertEquals("21.0", data.value(1, 0));
+        assertEquals("21.0", other.value(1, 1));
+        data.set(0, 3, "=Report!A0");
+        assertEquals(Ex2Utils.ERR_CYCLE, report.value(0, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, data.value(0, 3));
+        data.set(0, 3, "3");
+        assertEquals("6.0", report.value(0, 0));
+        assertEquals("7.0", other.value(1, 1));
+
+        assertThrows(IllegalArgumentException.class, () -> book.addSheet("data", 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> book.addSheet("1st", 1, 1));
+    }
+
+    @Test
+    void testBackgroundRecalculation() {
+        Ex2Sheet chain = new Ex2Sheet(1, 1000);
+        chain.set(0, 0, "1");
+        for (int y = 1; y < chain.height(); y++) {
+            chain.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        Sheet before = chain.snapshot();
+        int[] cancelAt = {64};
+        int[] progress = {0, 0};
+        chain.setMonitor(new Ex2Sheet.Monitor() {
+            @Override
+            public void recalculating(long[] cells) {
+                assertTrue(cells.length <= chain.height());
+            }
+
+            @Override
+            public void progress(int done, int total) {
+                progress[0] = done;
+                progress[1] = total;
+            }
+
+            @Override
+            public boolean cancelled() {
+                return progress[0] >= cancelAt[0];
+            }
+        });
+        chain.setAll(Collections.singletonMap(new CellEntry(0, 0), "11"));
+        assertSame(before, chain.snapshot()); // Cancelled, nothing published
+        assertEquals(64, progress[0]);
+        assertEquals("1000.0", chain.snapshot().value(0, 999));
+        cancelAt[0] = Integer.MAX_VALUE;
+        chain.beginBatch(); // The cells left by the cancelled recalculation
+        chain.commitBatch();
+        assertEquals(chain.height() - 128, progress[1]);
+        assertEquals(progress[1], progress[0]); // Done
+        assertEquals("1010.0", chain.snapshot().value(0, 999));
+
+        AsyncSheet async = new AsyncSheet(1, 1000);
+        async.set(0, 0, "1");
+        for (int y = 1; y < async.height(); y++) {
+            async.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        for (int i = 0; i < 50; i++) { // Each edit supersedes the recalculation in flight
+            async.set(0, 0, "" + i);
+        }
+        async.flush();
+        assertFalse(async.isBusy());
+        assertFalse(async.isStale(0, 999));
+        assertEquals(1.0, async.progress());
+        assertEquals("1048.0", async.value(0, 999));
+        async.close();
+    }
+
+    @Test
+    void testLazyEvaluation() {
+        Ex2Sheet large = new Ex2Sheet(2, 2000);
+        large.set(0, 0, "1");
+        for (int y = 1; y < large.height(); y++) {
+            large.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        large.set(1, 0, "=sum(A0:A1999)");
+        large.set(1, 1, "=A1*2");
+        large.setLazy(true);
+
+        large.set(0, 0, "5"); // Only marks its dependents
+        assertTrue(large.get(0, 1999).isDirty());
+        assertTrue(large.get(1, 0).isDirty());
+        assertEquals("15.0", large.value(0, 10)); // Computes its precedents only
+        assertFalse(large.get(0, 9).isDirty());
+        assertTrue(large.get(0, 11).isDirty());
+        assertEquals("2000.0", large.snapshot().value(0, 1999)); // The last computed value
+
+        large.evaluate(0, 0, 1, 1); // A viewport
+        assertFalse(large.get(1, 1).isDirty());
+        assertEquals("12.0", large.eval(1, 1));
+        assertEquals(4 * 2000 + 2000 * 2001 / 2 + ".0", large.eval(1, 0)); // Computes the whole range
+        int rounds = 0;
+        while (large.evaluateDeferred(100)) {
+            rounds++;
+        }
+        assertTrue(rounds > 0);
+        assertFalse(large.get(0, 1999).isDirty());
+        assertEquals("2004.0", large.snapshot().value(0, 1999));
+
+        large.eval(); // Everything dirty again, computed when read
+        assertTrue(large.get(0, 500).isDirty());
+        assertEquals("505.0", large.value(0, 500));
+        large.setLazy(false); // Evaluates the cells left
+        assertFalse(large.get(0, 1999).isDirty());
+        large.set(0, 0, "1");
+        assertEquals("2000.0", large.value(0, 1999));
+
+        AsyncSheet async = new AsyncSheet(1, 500);
+        async.setViewport(0, 0, 0, 9);
+        async.setLazy(true);
+        async.set(0, 0, "1");
+        for (int y = 1; y < async.height(); y++) {
+            async.set(0, y, "=A" + (y - 1) + "*1+1");
+        }
+        async.flush(); // The viewport, then the rest in idle time
+        assertFalse(async.isStale(0, 499));
+        assertEquals("500.0", async.value(0, 499));
+        async.close();
+    }
+
+    @Test
+    void testIterativeCycles() {
+        Ex2Sheet model = new Ex2Sheet(3, 3);
+        model.set(2, 1, "1");
+        model.set(0, 0, "=B0/2+C1");
+        model.set(1, 0, "=A0");
+        model.set(0, 1, "=A0*10");
+        model.set(2, 0, "=C0+1");
+        assertEquals(Ex2Utils.ERR_CYCLE, model.value(0, 0)); // By default
+        assertTrue(model.cycleReports().isEmpty());
+
+        model.setIterative(100);
+        model.eval();
+        assertEquals(2, Double.parseDouble(model.value(0, 0)), 1e-5); // A0 = A0 / 2 + 1
+        assertEquals(20, Double.parseDouble(model.value(0, 1)), 1e-4); // Depends on the cycle, computed once
+        assertEquals(2, model.cycleReports().size());
+        for (CycleReport report : model.cycleReports()) {
+            if (report.cells().size() == 2) {
+                assertTrue(report.converged());
+                assertTrue(report.iterations() > 1 && report.iterations() < 100);
+                assertTrue(report.change() < Ex2Utils.EPS);
+            } else { // C0 = C0 + 1 never settles
+                assertEquals("C0", report.cells().get(0).toString());
+                assertFalse(report.converged());
+                assertEquals(100, report.iterations());
+            }
+        }
+
+        model.set(2, 1, "3"); // Starts from the last values of the cycle
+        assertEquals(6, Double.parseDouble(model.value(0, 0)), 1e-5);
+        assertEquals(60, Double.parseDouble(model.value(0, 1)), 1e-4);
+        assertEquals(1, model.cycleReports().size());
+        assertEquals(2, model.cycleReports().get(0).cells().size());
+
+        model.set(2, 1, "0");
+        model.set(1, 0, "=1/A0"); // A0 = 1 / (2 * A0) oscillates
+        model.set(0, 0, "=B0/2+C1");
+        assertFalse(model.cycleReports().get(0).converged());
+
+        model.setIterative(0);
+        model.eval();
+        assertEquals(Ex2Utils.ERR_CYCLE, model.value(0, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, model.value(0, 1));
+    }
+
+    @Test
+    void testFilledDownColumns() {
+        Ex2Sheet columns = new Ex2Sheet(5, 2000);
+        for (int y = 0; y < columns.height(); y++) {
+            columns.set(0, y, y == 100 ? "text" : "" + y);
+            columns.set(1, y, "" + (y % 7));
+            columns.set(2, y, y == 500 ? "=A500+1" : "=max(A" + y + ",1)*2-A" + y + "/B" + y + "+sin(A" + y + ")");
+            columns.set(3, y, "=C" + y + "+pow(B" + y + ",2)-min(C" + y + ",0,-B" + y + ")");
+            columns.set(4, y, "=if(B" + y + ",C" + y + ",1)");
+        }
+        String[][] incremental = new String[columns.width()][columns.height()]; // Computed cell by cell by set
+        for (int x = 0; x < columns.width(); x++) {
+            for (int y = 0; y < columns.height(); y++) {
+                incremental[x][y] = columns.value(x, y);
+            }
+        }
+        double expected = Math.max(10, 1) * 2 - 10 / 3.0 + Math.sin(10);
+        assertEquals(expected + "", incremental[2][10]);
+        assertEquals(Ex2Utils.ERR_FORM, incremental[2][7]); // Division by zero
+        assertEquals(Ex2Utils.ERR_FORM, incremental[2][100]);
+
+        columns.eval(); // The runs of C and D are computed at once
+        for (int x = 0; x < columns.width(); x++) {
+            for (int y = 0; y < columns.height(); y++) {
+                assertEquals(incremental[x][y], columns.value(x, y), "Cell " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void testCompiledFormulas() {
+        String[] formulas = {"=if(A0-2,max(A0,B0,3)*2-B0/A0,pow(B0,2))", "=-sin(A0)+cos(B0)*count(A0,B0/2)",
+                "=if(A0,1,0)+min(A0,-B0)", "=sum(A0:B0)+A0/B0", "=avg(A0,B0)"};
+        Ex2Sheet compiled = new Ex2Sheet(3, formulas.length);
+        Ex2Sheet interpreted = new Ex2Sheet(3, formulas.length);
+        compiled.setCompileThreshold(3);
+        for (int y = 0; y < formulas.length; y++) {
+            compiled.set(2, y, formulas[y]);
+            interpreted.set(2, y, formulas[y]);
+        }
+        for (int round = 0; round < 20; round++) { // Hot after a few rounds
+            String a = "" + (round % 5), b = "" + (round % 3 - 1.5 * (round % 2));
+            for (Ex2Sheet sheet : new Ex2Sheet[]{compiled, interpreted}) {
+                sheet.set(0, 0, a);
+                sheet.set(1, 0, b);
+            }
+            for (int y = 0; y < formulas.length; y++) {
+                assertEquals(interpreted.value(2, y), compiled.value(2, y), "Round " + round + ", " + formulas[y]);
+            }
+        }
+        assertTrue(compiled.cellAt(2, 0).getFormula().isCompiled());
+        assertTrue(compiled.cellAt(2, 1).getFormula().isCompiled());
+        assertFalse(compiled.cellAt(2, 3).getFormula().isCompiled()); // Ranges stay interpreted
+        assertFalse(interpreted.cellAt(2, 0).getFormula().isCompiled());
+
+        compiled.set(0, 0, "2");
+        compiled.set(1, 0, "0");
+        assertEquals("0.0", compiled.value(2, 0)); // pow(0,2)
+        compiled.set(0, 0, "0");
+        assertEquals(Ex2Utils.ERR_FORM, compiled.value(2, 0)); // Division by zero, through the compiled tree
+    }
+
+    @Test
+    void testEvaluationTape() {
+        String[][] model = {
+                {"1", "2", "=A0+B0", "=C0*2", "=if(D0-6,D0/A0,-1)"},
+                {"3", "text", "=A1+B1", "=max(C0,D0,A1)", "=avg(A1,E0,count(A0,C0))"},
+                {"=E2+1", "=A2", "=A0/B0", "=Z99+1", "=(A0"}, // A cycle, an invalid reference and formula
+                {"=E0+pow(A1,2)", "=A3-C2", "=sin(A0)*cos(B0)", "=min(B3,C3,D2)", "=D3+E1"},
+        };
+        Ex2Sheet taped = new Ex2Sheet(model.length, model[0].length);
+        Ex2Sheet plain = new Ex2Sheet(model.length, model[0].length);
+        taped.setTape(true);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{taped, plain}) {
+            for (int x = 0; x < model.length; x++) {
+                for (int y = 0; y < model[x].length; y++) {
+                    sheet.set(x, y, model[x][y]);
+                }
+            }
+        }
+
+        String[] inputs = {"0", "5", "-2.5", "text", "", "7", "1e3"};
+        for (int round = 0; round < 40; round++) {
+            int x = round % 2, y = round % 3; // A0, B1, A2 (a structural edit), B0, A1, B2 (a cycle)...
+            String data = round % 9 == 4 ? "=A0*3" : inputs[round % inputs.length];
+            for (Ex2Sheet sheet : new Ex2Sheet[]{taped, plain}) {
+                sheet.set(x, y, data);
+            }
+            for (int i = 0; i < model.length; i++) {
+                for (int j = 0; j < model[i].length; j++) {
+                    assertEquals(plain.value(i, j), taped.value(i, j), "Round " + round + ", cell " + i + "," + j);
+                }
+            }
+        }
+
+        taped.set(2, 4, "=sum(A0:A4)"); // Ranges: back to the cell by cell recalculation
+        plain.set(2, 4, "=sum(A0:A4)");
+        taped.set(0, 0, "4");
+        plain.set(0, 0, "4");
+        assertEquals(plain.value(2, 4), taped.value(2, 4));
+        assertEquals(plain.value(3, 4), taped.value(3, 4));
+        assertNull(taped.tape());
+
+        taped.set(2, 4, "=A0+A1"); // No more ranges: the next value edit builds the tape again
+        plain.set(2, 4, "=A0+A1");
+        taped.set(0, 0, "6");
+        plain.set(0, 0, "6");
+        assertNotNull(taped.tape());
+        assertEquals(plain.value(2, 4), taped.value(2, 4));
+        assertEquals(plain.value(3, 4), taped.value(3, 4));
+    }
+
+    @Test
+    void testTapeAfterNewCellInRange() {
+        Ex2Sheet taped = new Ex2Sheet(4, 6);
+        Ex2Sheet plain = new Ex2Sheet(4, 6);
+        taped.setTape(true);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{taped, plain}) {
+            sheet.set(2, 2, "=if(A0,-2,sum(A1:C5))");
+            sheet.set(0, 0, "txt"); // Builds the tape
+            sheet.set(1, 2, "3"); // A new cell in the range: a new node of the graph, the tape is stale
+            sheet.set(1, 2, "4");
+        }
+        assertEquals(plain.value(2, 2), taped.value(2, 2));
+        taped.set(0, 0, "0");
+        plain.set(0, 0, "0");
+        assertEquals(Ex2Utils.ERR_CYCLE, taped.value(2, 2)); // The range holds C2 itself
+        assertEquals(plain.value(2, 2), taped.value(2, 2));
+    }
+
+    @Test
+    void testFoldedAndSharedSubexpressions() {
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        sheet.setSharing(true);
+        sheet.set(0, 0, "2");
+        sheet.set(1, 0, "3");
+        sheet.set(2, 1, "4");
+        sheet.set(3, 1, "5");
+        sheet.set(0, 1, "=A0*(3-2)+pow(2,3)/-(1+1)");
+        sheet.set(0, 2, "=1/0+A0");
+        sheet.set(0, 3, "=(A0+B0)*C1");
+        sheet.set(0, 4, "=(A0 + b0)/D1+sin(A0+B0)");
+        assertEquals("-2.0", sheet.value(0, 1));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 2)); // A division by zero is not folded away
+        assertEquals(new Formula("=A0*1+-4").size(), new Formula("=A0*(3-2)+pow(2,3)/-(1+1)").size());
+        assertTrue(new Formula("=A0*1+-4").constants().length <= new Formula("=A0*(3-2)+pow(2,3)/-(1+1)").constants().length);
+
+        Formula first = sheet.cellAt(0, 3).getFormula(), second = sheet.cellAt(0, 4).getFormula();
+        SharedSubexpression node = first.linked()[0];
+        assertSame(node, second.linked()[0]); // One node for the A0+B0 of both formulas
+        assertEquals(2, Collections.frequency(Arrays.asList(second.linked()), node)); // And the one inside sin
+        assertEquals(3, node.users);
+        for (int a = -3; a <= 3; a++) {
+            sheet.set(0, 0, "" + a);
+            assertTrue(node.isCurrent()); // Computed once by this recalculation
+            assertEquals((a + 3) * 4.0 + "", sheet.value(0, 3));
+            assertEquals((a + 3) / 5.0 + Math.sin(a + 3) + "", sheet.value(0, 4));
+        }
+
+        sheet.set(0, 3, "=A0-B0");
+        assertEquals(2, node.users);
+        sheet.set(1, 0, "7");
+        assertEquals((3 + 7) / 5.0 + Math.sin(3 + 7) + "", sheet.value(0, 4));
+        sheet.set(0, 4, "=A0+B0");
+        assertEquals(0, node.users); // Removed along with its last formula
+        assertFalse(node.isCurrent());
+        sheet.set(0, 4, "=(A0+B0)/D1+sin(A0+B0)");
+        sheet.eval(); // Relinked from scratch
+        assertEquals(2, sheet.cellAt(0, 4).getFormula().linked()[0].users);
+        assertEquals("-4.0", sheet.value(0, 3));
+        assertEquals((3 + 7) / 5.0 + Math.sin(3 + 7) + "", sheet.value(0, 4));
+
+        sheet.setSharing(false);
+        assertNull(sheet.cellAt(0, 4).getFormula().linked());
+        sheet.set(0, 0, "1");
+        assertEquals((1 + 7) / 5.0 + Math.sin(1 + 7) + "", sheet.value(0, 4));
+    }
+
+    @Test
+    void testSharedSubexpressionsAcrossSheets() {
+        Workbook book = new Workbook();
+        Ex2Sheet first = book.addSheet("Sheet1", 3, 3);
+        Ex2Sheet second = book.addSheet("Sheet2", 3, 3);
+        first.setSharing(true);
+        first.set(0, 0, "1");
+        second.set(0, 0, "=Sheet1!A0*10");
+        first.set(1, 0, "=(Sheet2!A0+A0)*2");
+        first.set(2, 0, "=(Sheet2!A0+A0)*3");
+        assertEquals("22.0", first.value(1, 0));
+        assertEquals("33.0", first.value(2, 0));
+
+        first.get(0, 0).setData("3"); // Sheet2!A0 is only recomputed after the formulas of this sheet
+        first.eval();
+        assertEquals("30.0", second.value(0, 0));
+        assertEquals("66.0", first.value(1, 0));
+        assertEquals("99.0", first.value(2, 0));
     }
 }
@@ -0,0 +1,1068 @@
+package Code;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A formula compiled once, when the data of its cell is set.
+// The text is parsed into a postfix program running over a primitive double stack, with the cell references
+// resolved to integer coordinates, so an evaluation only binds the current values of the referenced cells
+// and does not allocate. The bound values and the stack are taken from the EvaluationContext of the thread.
+// A formula evaluated often enough (see Ex2Sheet.setCompileThreshold) is compiled further, into a tree of method
+// handles run instead of the program (see FormulaCompiler). Apart from that tree and the nodes of its shared
+// subexpressions, linked (and unlinked) by the sheet after it is compiled (see link), a compiled formula is never
+// modified.
+// The aggregate functions also accept ranges of cells (e.g., "=sum(A0:A500)"), SUM, COUNT and AVG of a range
+// are read from the Aggregates of the sheet instead of visiting its cells.
+// A run of cells holding the same formula filled down (e.g., "=A0*B0", "=A1*B1", ...) can also be evaluated
+// at once by evaluateColumn, one loop over primitive arrays per instruction (see Ex2Sheet.evaluateRange).
+// The constant parts of a formula are computed once, when it is compiled (e.g., "=A1*(3-2)" is run as "=A1*1"),
+// and in a sheet sharing them (see Ex2Sheet.setSharing), the subexpressions which also appear in other formulas are
+// computed once per recalculation (see SharedSubexpression).
+// In a Workbook, a reference or a range may name another sheet of the workbook (e.g., "=SHEET2!B3+1" or
+// "=sum(DATA!A0:A9)"), the names are resolved when the formula is evaluated.
+class Formula {
+    // The functions which can be used in a formula (the FUNCTIONS remark of Ex2Utils), e.g., "=max(A1,2*B3)"
+    static final String[] FUNCTIONS = {"if", "sin", "cos", "pow", "min", "max", "sum", "avg", "count"};
+
+    // Opcodes of the compiled program, the operand of an instruction (if any) follows its opcode
+    static final int CONST = 0, REF = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, NEG = 6,
+            SIN = 7, COS = 8, POW = 9, MIN = 10, MAX = 11, JUMP = 12, JUMP_IF_ZERO = 13,
+            RANGE_SUM = 14, RANGE_COUNT = 15, RANGE_MIN = 16, RANGE_MAX = 17, COUNTED = 18, AVG = 19,
+            SHARED = 20, SHARE = 21;
+    // SHARED k end ... SHARE k wraps the code of the k-th shared subexpression (see SharedSubexpression): SHARED
+    // pushes its cached value and jumps to end if it is current, SHARE caches the value it computed. Only run
+    // reads the cache, the other ways of running a program compute the subexpressions again.
+
+    private static final int MIN_SHARED = 5, MAX_SHARED = 64; // Size (in words) of the code of a shared subexpression
+
+    private final int[] xs; // X-coordinate of each distinct reference
+    private final int[] ys; // Y-coordinate of each distinct reference
+    private final String[] refSheets; // The sheet of each reference (upper case), null for the sheet of the formula
+    private final int[] rangeX1, rangeY1, rangeX2, rangeY2; // The corners of each range (x1 <= x2, y1 <= y2)
+    private final String[] rangeSheets; // The sheet of each range, as refSheets
+    private int[] code; // The postfix program, null if the formula can not be parsed
+    private double[] constants; // The numbers appearing in the formula
+    private int stackSize = 1; // The size of the operand stack, for the deepest point of the program
+    private int evaluations; // Number of evaluations so far, until the formula is compiled (racy, only a hint)
+    private boolean interpreted; // Whether the program can not be compiled (see FormulaCompiler)
+    private volatile MethodHandle tree; // The compiled program, null until the formula is hot
+    private final String[] sharedKeys; // The key of each subexpression which may be shared (see SHARED)
+    private SharedSubexpression[] shared; // The node of each of them in the sheet, null until linked (see link)
+
+    // Compilation state (only used by the constructor)
+    private String text;
+    private int pos, size, depth, maxDepth;
+    private List<Double> numbers = new ArrayList<>();
+    private Map<String, Integer> refs = new LinkedHashMap<>(); // "SHEET!packed" (see CellEntry.parse) to index
+    private List<Long> refCells = new ArrayList<>(); // The packed coordinates of each reference
+    private List<String> refNames = new ArrayList<>(); // The sheet of each reference
+    private List<int[]> ranges = new ArrayList<>();
+    private List<String> rangeNames = new ArrayList<>(); // The sheet of each range
+    private List<Integer> operands = new ArrayList<>(); // The start (in code) of each value on the stack
+    private List<String> keys = new ArrayList<>(); // The key of each subexpression which may be shared
+
+    // Compile the formula text (including the leading '=')
+    Formula(String content) {
+        text = content.substring(1).toUpperCase(); // Remove '=' and convert to uppercase
+        code = new int[16];
+        try {
+            parseExpression();
+            skipSpaces();
+            if (pos != text.length()) {
+                throw new IllegalArgumentException("Unexpected '" + text.charAt(pos) + "' at " + pos);
+            }
+            if (code[0] == SHARED && code[2] == size) { // The whole formula, whose value is the cell's anyway
+                System.arraycopy(code, 3, code, 0, size - 5);
+                size -= 5;
+                keys.remove(keys.size() - 1); // The last one wrapped
+                for (int pc = 0; pc < size; pc += length(code[pc])) {
+                    if (code[pc] == SHARED) code[pc + 2] -= 3;
+                }
+            }
+            code = Arrays.copyOf(code, size);
+            constants = new double[numbers.size()];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = numbers.get(i);
+            }
+            stackSize = Math.max(1, maxDepth);
+        } catch (IllegalArgumentException e) {
+            code = null; // Invalid syntax, reported when the formula is evaluated
+            keys.clear();
+        }
+        sharedKeys = keys.toArray(new String[0]);
+
+        xs = new int[refCells.size()];
+        ys = new int[refCells.size()];
+        refSheets = refNames.toArray(new String[0]);
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = CellEntry.packedX(refCells.get(i));
+            ys[i] = CellEntry.packedY(refCells.get(i));
+        }
+
+        rangeX1 = new int[ranges.size()];
+        rangeY1 = new int[ranges.size()];
+        rangeX2 = new int[ranges.size()];
+        rangeY2 = new int[ranges.size()];
+        rangeSheets = rangeNames.toArray(new String[0]);
+        for (int i = 0; i < ranges.size(); i++) {
+            int[] range = ranges.get(i);
+            rangeX1[i] = Math.min(range[0], range[2]);
+            rangeY1[i] = Math.min(range[1], range[3]);
+            rangeX2[i] = Math.max(range[0], range[2]);
+            rangeY2[i] = Math.max(range[1], range[3]);
+        }
+        text = null;
+        numbers = null;
+        refs = null;
+        refCells = null;
+        refNames = null;
+        ranges = null;
+        rangeNames = null;
+        operands = null;
+        keys = null;
+    }
+
+    // Evaluate the formula against the current values of the sheet, updating the type of the cell
+    double evaluate(Ex2Sheet sheet, SCell currentCell) {
+        EvaluationContext context = EvaluationContext.current();
+        int values = context.enter(xs.length + stackSize); // The bound values, then the stack
+        try {
+            for (int i = 0; i < xs.length; i++) {
+                Ex2Sheet target = target(sheet, refSheets[i]);
+                if (target == null || !target.isIn(xs[i], ys[i])) {
+                    currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
+                    return Ex2Utils.ERR_FORM_FORMAT; // Invalid reference (or unknown sheet)
+                }
+
+                SCell referencedCell = target.cellAt(xs[i], ys[i]); // SCell.EMPTY (text) if it was never written
+                if (referencedCell.isDirty()) {
+                    target.eval(xs[i], ys[i]); // Only when the data was changed directly, see Ex2Sheet.eval
+                }
+
+                int refType = referencedCell.getType();
+                if (refType == Ex2Utils.ERR_CYCLE_FORM) {
+                    currentCell.setType(Ex2Utils.ERR_CYCLE_FORM);
+                    return Ex2Utils.ERR_CYCLE_FORM;
+                }
+                if (refType != Ex2Utils.NUMBER && refType != Ex2Utils.FORM) { // Text, empty or invalid
+                    currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
+                    return Ex2Utils.ERR_FORM_FORMAT;
+                }
+
+                currentCell.setType(Ex2Utils.FORM);
+                context.slots()[values + i] = referencedCell.getValue();
+            }
+            for (int i = 0; i < rangeX1.length; i++) {
+                Ex2Sheet target = target(sheet, rangeSheets[i]);
+                if (target == null || !target.isIn(rangeX1[i], rangeY1[i]) || !target.isIn(rangeX2[i], rangeY2[i])) {
+                    currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
+                    return Ex2Utils.ERR_FORM_FORMAT; // Invalid range
+                }
+                Aggregates aggregates = target.aggregates();
+                if (aggregates.cycles(rangeX1[i], rangeY1[i], rangeX2[i], rangeY2[i]) > 0) {
+                    currentCell.setType(Ex2Utils.ERR_CYCLE_FORM);
+                    return Ex2Utils.ERR_CYCLE_FORM;
+                }
+                if (aggregates.errors(rangeX1[i], rangeY1[i], rangeX2[i], rangeY2[i]) > 0) {
+                    currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
+                    return Ex2Utils.ERR_FORM_FORMAT;
+                }
+                currentCell.setType(Ex2Utils.FORM); // Text and empty cells of a range are skipped
+            }
+            if (code == null) {
+                throw new IllegalArgumentException("Invalid formula");
+            }
+            MethodHandle tree = this.tree;
+            if (tree == null && !interpreted && sheet.compileThreshold() > 0
+                    && ++evaluations >= sheet.compileThreshold()) {
+                tree = compile();
+            }
+            if (tree != null) {
+                return FormulaCompiler.invoke(tree, context.slots(), values);
+            }
+            return run(sheet, context.slots(), values, values + xs.length);
+        } catch (Exception e) {
+            currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
+            return Ex2Utils.ERR_FORM_FORMAT;
+        } finally {
+            context.exit(values);
+        }
+    }
+
+    // Compile the program of this (hot) formula, returns null if it can not be compiled
+    private MethodHandle compile() {
+        MethodHandle compiled = FormulaCompiler.compile(code, constants);
+        if (compiled == null) {
+            interpreted = true;
+        }
+        tree = compiled;
+        return compiled;
+    }
+
+    // Whether the formula runs as a tree of method handles (see compile)
+    boolean isCompiled() {
+        return tree != null;
+    }
+
+    // The sheet named by a reference or a range of a formula of the given sheet (null for the sheet itself),
+    // null if there is no such sheet
+    private static Ex2Sheet target(Ex2Sheet sheet, String name) {
+        return name == null ? sheet : sheet.resolve(name);
+    }
+
+    // Number of distinct cells referenced by this formula
+    int size() {
+        return xs.length;
+    }
+
+    // X-coordinate of the i-th reference
+    int refX(int i) {
+        return xs[i];
+    }
+
+    // Y-coordinate of the i-th reference
+    int refY(int i) {
+        return ys[i];
+    }
+
+    // The sheet of the i-th reference (upper case), null for the sheet of the formula
+    String refSheet(int i) {
+        return refSheets[i];
+    }
+
+    // Number of ranges used by this formula
+    int ranges() {
+        return rangeX1.length;
+    }
+
+    // Corners of the i-th range
+    int rangeX1(int i) {
+        return rangeX1[i];
+    }
+
+    int rangeY1(int i) {
+        return rangeY1[i];
+    }
+
+    int rangeX2(int i) {
+        return rangeX2[i];
+    }
+
+    int rangeY2(int i) {
+        return rangeY2[i];
+    }
+
+    // The sheet of the i-th range, as refSheet
+    String rangeSheet(int i) {
+        return rangeSheets[i];
+    }
+
+    // Whether one of the ranges (of this formula of the owner sheet) contains the cell (x, y) of the target sheet
+    boolean rangesContain(Ex2Sheet owner, Ex2Sheet target, int x, int y) {
+        for (int i = 0; i < rangeX1.length; i++) {
+            if (target(owner, rangeSheets[i]) != target) continue;
+            if (x >= rangeX1[i] && x <= rangeX2[i] && y >= rangeY1[i] && y <= rangeY2[i]) return true;
+        }
+        return false;
+    }
+
+    // Whether a reference or a range names the given sheet (upper case)
+    boolean names(String sheet) {
+        return Arrays.asList(refSheets).contains(sheet) || Arrays.asList(rangeSheets).contains(sheet);
+    }
+
+    // Whether the formula was parsed (a formula which can not be parsed always evaluates to ERR_FORM)
+    boolean isValid() {
+        return code != null;
+    }
+
+    // The size of the operand stack of the program
+    int stackSize() {
+        return stackSize;
+    }
+
+    // The numbers of the program. Do not modify.
+    double[] constants() {
+        return constants;
+    }
+
+    // A copy of the (valid) program to run from position codeBase of a larger program (see EvaluationTape): the
+    // i-th reference reads slots[i], the constants start at constantBase and the jumps are moved by codeBase.
+    // Returns null if the program uses ranges or other sheets, which read more than the referenced values.
+    int[] relocate(int[] slots, int constantBase, int codeBase) {
+        if (rangeX1.length > 0) return null;
+        for (String sheet : refSheets) {
+            if (sheet != null) return null;
+        }
+        int[] program = code.clone();
+        for (int pc = 0; pc < program.length; pc++) {
+            switch (program[pc]) {
+                case CONST:
+                    program[++pc] += constantBase;
+                    break;
+                case REF:
+                    program[pc + 1] = slots[program[pc + 1]];
+                    pc++;
+                    break;
+                case JUMP:
+                case JUMP_IF_ZERO:
+                    program[++pc] += codeBase;
+                    break;
+                case MIN:
+                case MAX:
+                case AVG:
+                case SHARE:
+                    pc++; // The number of arguments, or the subexpression
+                    break;
+                case SHARED:
+                    program[pc + 2] += codeBase;
+                    pc += 2;
+                    break;
+                case RANGE_SUM:
+                case RANGE_COUNT:
+                case RANGE_MIN:
+                case RANGE_MAX:
+                    return null;
+                default:
+                    break;
+            }
+        }
+        return program;
+    }
+
+    // Number of subexpressions of this formula which may be shared with other formulas
+    int sharedCount() {
+        return sharedKeys.length;
+    }
+
+    // The key of the i-th of them: its text, with the references and the constants written out in full
+    String sharedKey(int i) {
+        return sharedKeys[i];
+    }
+
+    // Use the given nodes of the sheet for the subexpressions (by index), null to stop sharing them
+    void link(SharedSubexpression[] nodes) {
+        shared = nodes;
+    }
+
+    // The nodes used by the subexpressions, null if there are none
+    SharedSubexpression[] linked() {
+        return shared;
+    }
+
+    // Whether evaluateColumn can run this formula: a valid program of arithmetic over references to its own sheet
+    // (without ranges or conditions)
+    boolean isColumnar() {
+        if (code == null || rangeX1.length > 0) return false;
+        for (String sheet : refSheets) {
+            if (sheet != null) return false;
+        }
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CONST:
+                case REF:
+                case MIN:
+                case MAX:
+                case SHARE:
+                    pc++; // The operand
+                    break;
+                case SHARED:
+                    pc += 2;
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case NEG:
+                case SIN:
+                case COS:
+                case POW:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether other, the formula of the cell dy rows below the cell of this one, is this formula filled down:
+    // the same program, with all the references moved dy rows down
+    boolean filledDown(Formula other, int dy) {
+        if (!Arrays.equals(code, other.code) || !Arrays.equals(constants, other.constants)
+                || !Arrays.equals(xs, other.xs) || other.rangeX1.length > 0) {
+            return false;
+        }
+        for (int i = 0; i < ys.length; i++) {
+            if (other.ys[i] != ys[i] + dy || other.refSheets[i] != null) return false;
+        }
+        return true;
+    }
+
+    // Run the program (see isColumnar) for n cells at once: the formula filled down n rows, where refs[i][k] is
+    // the value of the i-th reference of the k-th cell. Each instruction is a loop over the n cells, which the JIT
+    // can unroll and vectorize. The cells which can not be computed this way (a division by zero) are marked in
+    // failed, their results are meaningless.
+    void evaluateColumn(double[][] refs, int n, double[] results, boolean[] failed) {
+        double[][] stack = new double[stackSize][];
+        int sp = 0, pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST: {
+                    double constant = constants[code[pc++]];
+                    Arrays.fill(column(stack, sp++, n), 0, n, constant);
+                    break;
+                }
+                case REF:
+                    System.arraycopy(refs[code[pc++]], 0, column(stack, sp++, n), 0, n);
+                    break;
+                case ADD: {
+                    double[] a = stack[sp - 2], b = stack[--sp];
+                    for (int k = 0; k < n; k++) a[k] += b[k];
+                    break;
+                }
+                case SUB: {
+                    double[] a = stack[sp - 2], b = stack[--sp];
+                    for (int k = 0; k < n; k++) a[k] -= b[k];
+                    break;
+                }
+                case MUL: {
+                    double[] a = stack[sp - 2], b = stack[--sp];
+                    for (int k = 0; k < n; k++) a[k] *= b[k];
+                    break;
+                }
+                case DIV: {
+                    double[] a = stack[sp - 2], b = stack[--sp];
+                    for (int k = 0; k < n; k++) {
+                        if (b[k] == 0) {
+                            failed[k] = true; // An error, reported by the evaluation of the cell itself
+                        } else {
+                            a[k] /= b[k];
+                        }
+                    }
+                    break;
+                }
+                case NEG: {
+                    double[] a = stack[sp - 1];
+                    for (int k = 0; k < n; k++) a[k] = -a[k];
+                    break;
+                }
+                case SIN: {
+                    double[] a = stack[sp - 1];
+                    for (int k = 0; k < n; k++) a[k] = Math.sin(a[k]);
+                    break;
+                }
+                case COS: {
+                    double[] a = stack[sp - 1];
+                    for (int k = 0; k < n; k++) a[k] = Math.cos(a[k]);
+                    break;
+                }
+                case POW: {
+                    double[] a = stack[sp - 2], b = stack[--sp];
+                    for (int k = 0; k < n; k++) a[k] = Math.pow(a[k], b[k]);
+                    break;
+                }
+                case MIN:
+                case MAX: {
+                    boolean min = code[pc - 1] == MIN;
+                    int args = code[pc++];
+                    double[] a = stack[sp - args];
+                    for (int j = sp - args + 1; j < sp; j++) {
+                        double[] b = stack[j];
+                        if (min) {
+                            for (int k = 0; k < n; k++) a[k] = Math.min(a[k], b[k]);
+                        } else {
+                            for (int k = 0; k < n; k++) a[k] = Math.max(a[k], b[k]);
+                        }
+                    }
+                    sp -= args - 1;
+                    break;
+                }
+                case SHARED:
+                    pc += 2; // Computed again
+                    break;
+                case SHARE:
+                    pc++;
+                    break;
+                default:
+                    throw new IllegalStateException("Not a columnar opcode");
+            }
+        }
+        System.arraycopy(stack[0], 0, results, 0, n);
+    }
+
+    // The i-th column of the stack of evaluateColumn, allocated on first use
+    private static double[] column(double[][] stack, int i, int n) {
+        if (stack[i] == null) stack[i] = new double[n];
+        return stack[i];
+    }
+
+    // Execute the postfix program over the reference values bound at slots[values..] (and the ranges of the
+    // sheet), with its stack at slots[stackBase..]
+    private double run(Ex2Sheet sheet, double[] slots, int values, int stackBase) {
+        double[] stack = slots;
+        int[] code = this.code;
+        int sp = stackBase, pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case REF:
+                    stack[sp++] = slots[values + code[pc++]];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    if (stack[sp] == 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case SIN:
+                    stack[sp - 1] = Math.sin(stack[sp - 1]);
+                    break;
+                case COS:
+                    stack[sp - 1] = Math.cos(stack[sp - 1]);
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case MIN:
+                case MAX: {
+                    boolean min = code[pc - 1] == MIN;
+                    int n = code[pc++];
+                    double result = stack[sp - n];
+                    for (int k = sp - n + 1; k < sp; k++) {
+                        result = min ? Math.min(result, stack[k]) : Math.max(result, stack[k]);
+                    }
+                    sp -= n - 1;
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case RANGE_SUM: {
+                    int r = code[pc++];
+                    stack[sp++] = target(sheet, rangeSheets[r]).aggregates().sum(rangeX1[r], rangeY1[r], rangeX2[r], rangeY2[r]);
+                    break;
+                }
+                case RANGE_COUNT: {
+                    int r = code[pc++];
+                    stack[sp++] = target(sheet, rangeSheets[r]).aggregates().count(rangeX1[r], rangeY1[r], rangeX2[r], rangeY2[r]);
+                    break;
+                }
+                case RANGE_MIN:
+                case RANGE_MAX:
+                    stack[sp++] = extreme(sheet, code[pc++], code[pc - 2] == RANGE_MIN);
+                    break;
+                case COUNTED:
+                    stack[sp - 1] = 1; // A value given directly to COUNT
+                    break;
+                case AVG: {
+                    int n = code[pc++]; // Pairs of (sum, count)
+                    double sum = 0, count = 0;
+                    for (int k = sp - 2 * n; k < sp; k += 2) {
+                        sum += stack[k];
+                        count += stack[k + 1];
+                    }
+                    if (count == 0) {
+                        throw new ArithmeticException("Average of no numbers");
+                    }
+                    sp -= 2 * n - 1;
+                    stack[sp - 1] = sum / count;
+                    break;
+                }
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case JUMP_IF_ZERO: {
+                    int target = code[pc++];
+                    if (stack[--sp] == 0) {
+                        pc = target;
+                    }
+                    break;
+                }
+                case SHARED: {
+                    SharedSubexpression node = shared == null ? null : shared[code[pc]];
+                    if (node != null && node.isCurrent()) {
+                        stack[sp++] = node.value(); // Computed by another formula
+                        pc = code[pc + 1];
+                    } else {
+                        pc += 2;
+                    }
+                    break;
+                }
+                case SHARE: {
+                    SharedSubexpression node = shared == null ? null : shared[code[pc]];
+                    if (node != null) node.store(stack[sp - 1]);
+                    pc++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode");
+            }
+        }
+        return stack[stackBase];
+    }
+
+    // The minimum (or maximum) of the numeric cells of the r-th range
+    private double extreme(Ex2Sheet sheet, int r, boolean min) {
+        double[] result = {min ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY};
+        boolean[] found = {false};
+        target(sheet, rangeSheets[r]).forEachIn(rangeX1[r], rangeY1[r], rangeX2[r], rangeY2[r], (x, y, cell) -> { // The empty cells are skipped
+            if (cell.getType() == Ex2Utils.NUMBER || cell.getType() == Ex2Utils.FORM) {
+                result[0] = min ? Math.min(result[0], cell.getValue()) : Math.max(result[0], cell.getValue());
+                found[0] = true;
+            }
+        });
+        if (!found[0]) {
+            throw new ArithmeticException("No numbers in the range");
+        }
+        return result[0];
+    }
+
+    // expression := term (('+' | '-') term)*
+    private void parseExpression() {
+        parseTerm();
+        while (true) {
+            skipSpaces();
+            if (peek() == '+' || peek() == '-') {
+                int op = text.charAt(pos++) == '+' ? ADD : SUB;
+                parseTerm();
+                apply(op, 2, -1);
+            } else {
+                return;
+            }
+        }
+    }
+
+    // term := unary (('*' | '/') unary)*
+    private void parseTerm() {
+        parseUnary();
+        while (true) {
+            skipSpaces();
+            if (peek() == '*' || peek() == '/') {
+                int op = text.charAt(pos++) == '*' ? MUL : DIV;
+                parseUnary();
+                apply(op, 2, -1);
+            } else {
+                return;
+            }
+        }
+    }
+
+    // unary := ('-' | '+') unary | primary
+    private void parseUnary() {
+        skipSpaces();
+        if (peek() == '-') {
+            pos++;
+            parseUnary();
+            apply(NEG, 1, -1);
+        } else if (peek() == '+') {
+            pos++;
+            parseUnary();
+        } else {
+            parsePrimary();
+        }
+    }
+
+    // primary := number | [sheet '!'] cell | function '(' arguments ')' | '(' expression ')'
+    private void parsePrimary() {
+        skipSpaces();
+        char c = peek();
+        if (c == '(') {
+            pos++;
+            parseExpression();
+            expect(')');
+        } else if (Character.isDigit(c) || c == '.') {
+            parseNumber();
+        } else if (c >= 'A' && c <= 'Z') {
+            int start = pos;
+            String sheet = scanSheet();
+            long ref = scanCell();
+            if (sheet != null && ref < 0) {
+                throw new IllegalArgumentException("Expected a cell at " + pos);
+            }
+            if (ref >= 0) { // A cell reference, e.g., "B12", "AA3" or "SHEET2!B3"
+                String name = (sheet == null ? "" : sheet) + "!" + ref;
+                Integer index = refs.get(name);
+                if (index == null) {
+                    index = refCells.size();
+                    refs.put(name, index);
+                    refCells.add(ref);
+                    refNames.add(sheet);
+                }
+                push(REF, index);
+            } else {
+                while (peek() >= 'A' && peek() <= 'Z') pos++;
+                parseFunction(text.substring(start, pos));
+            }
+        } else {
+            throw new IllegalArgumentException("Unexpected end of formula at " + pos);
+        }
+    }
+
+    // number := digits ['.' digits] [('E' | 'e') ['+' | '-'] digits]
+    private void parseNumber() {
+        int start = pos;
+        while (Character.isDigit(peek()) || peek() == '.') pos++;
+        if (peek() == 'E') {
+            int mark = pos++;
+            if (peek() == '+' || peek() == '-') pos++;
+            if (!Character.isDigit(peek())) {
+                pos = mark; // Not an exponent
+            } else {
+                while (Character.isDigit(peek())) pos++;
+            }
+        }
+        numbers.add(Double.parseDouble(text.substring(start, pos)));
+        push(CONST, numbers.size() - 1);
+    }
+
+    // function := name '(' expression (',' expression)* ')'
+    private void parseFunction(String name) {
+        expect('(');
+        if (name.equalsIgnoreCase("if")) { // Only the chosen branch is evaluated
+            parseExpression();
+            expect(',');
+            int condition = pop(); // The if is a value starting with its condition
+            emit(JUMP_IF_ZERO, -1);
+            int elseJump = size;
+            emit(0, 0);
+            int branchDepth = depth;
+            parseExpression();
+            pop();
+            expect(',');
+            emit(JUMP, 0);
+            int endJump = size;
+            emit(0, 0);
+            code[elseJump] = size;
+            depth = branchDepth; // The else branch starts from the same stack as the then branch
+            parseExpression();
+            pop();
+            code[endJump] = size;
+            operands.add(condition);
+            expect(')');
+            return;
+        }
+
+        if (name.equals("SUM") || name.equals("AVG") || name.equals("COUNT")
+                || name.equals("MIN") || name.equals("MAX")) {
+            parseAggregate(name);
+            return;
+        }
+
+        int args = 0;
+        while (true) {
+            parseExpression();
+            args++;
+            skipSpaces();
+            if (peek() != ',') break;
+            pos++;
+        }
+        expect(')');
+
+        if (name.equalsIgnoreCase("sin") && args == 1) {
+            apply(SIN, 1, -1);
+        } else if (name.equalsIgnoreCase("cos") && args == 1) {
+            apply(COS, 1, -1);
+        } else if (name.equalsIgnoreCase("pow") && args == 2) {
+            apply(POW, 2, -1);
+        } else {
+            throw new IllegalArgumentException("Unknown function " + name + " with " + args + " arguments");
+        }
+    }
+
+    // aggregate := name '(' argument (',' argument)* ')', argument := range | expression
+    private void parseAggregate(String name) {
+        int args = 0;
+        while (true) {
+            int range = parseRange();
+            if (name.equals("SUM") || name.equals("COUNT")) {
+                boolean sum = name.equals("SUM");
+                if (range >= 0) {
+                    push(sum ? RANGE_SUM : RANGE_COUNT, range);
+                } else {
+                    parseExpression();
+                    if (!sum) apply(COUNTED, 1, -1);
+                }
+                if (args > 0) apply(ADD, 2, -1);
+            } else if (name.equals("AVG")) { // Each argument pushes its sum and its count
+                if (range >= 0) {
+                    push(RANGE_SUM, range);
+                    push(RANGE_COUNT, range);
+                } else {
+                    parseExpression();
+                    numbers.add(1.0);
+                    push(CONST, numbers.size() - 1);
+                }
+            } else if (range >= 0) { // MIN or MAX
+                push(name.equals("MIN") ? RANGE_MIN : RANGE_MAX, range);
+            } else {
+                parseExpression();
+            }
+            args++;
+            skipSpaces();
+            if (peek() != ',') break;
+            pos++;
+        }
+        expect(')');
+
+        if (name.equals("AVG")) {
+            apply(AVG, 2 * args, args);
+        } else if (name.equals("MIN") || name.equals("MAX")) {
+            apply(name.equals("MIN") ? MIN : MAX, args, args);
+        }
+    }
+
+    // range := [sheet '!'] cell ':' cell, returns the index of the range, or -1 (without moving) if there is no
+    // range here
+    private int parseRange() {
+        skipSpaces();
+        int start = pos;
+        String sheet = scanSheet();
+        long from = scanCell();
+        if (from >= 0) {
+            skipSpaces();
+            if (peek() == ':') {
+                pos++;
+                skipSpaces();
+                long to = scanCell();
+                if (to < 0) {
+                    throw new IllegalArgumentException("Expected a cell at " + pos);
+                }
+                ranges.add(new int[]{CellEntry.packedX(from), CellEntry.packedY(from),
+                        CellEntry.packedX(to), CellEntry.packedY(to)});
+                rangeNames.add(sheet);
+                return ranges.size() - 1;
+            }
+        }
+        pos = start;
+        return -1;
+    }
+
+    // Scan a sheet name followed by '!' (e.g., "SHEET2!"), returns the name, or null (without moving) if there is
+    // none here
+    private String scanSheet() {
+        int start = pos;
+        while ((peek() >= 'A' && peek() <= 'Z') || Character.isDigit(peek()) || peek() == '_') pos++;
+        if (pos == start || peek() != '!') {
+            pos = start;
+            return null;
+        }
+        return text.substring(start, pos++);
+    }
+
+    // Scan a cell name (letters followed by digits), returns its packed coordinates (see CellEntry.parse),
+    // or -1 (without moving) if there is none here
+    private long scanCell() {
+        int start = pos;
+        while (peek() >= 'A' && peek() <= 'Z') pos++;
+        if (pos == start || !Character.isDigit(peek())) {
+            pos = start;
+            return -1;
+        }
+        while (Character.isDigit(peek())) pos++;
+        long packed = CellEntry.parse(text, start, pos);
+        if (packed < 0) {
+            throw new IllegalArgumentException("Invalid cell " + text.substring(start, pos));
+        }
+        return packed;
+    }
+
+    // Append an instruction pushing a value (a number, a reference or an aggregate of a range) with its operand
+    private void push(int opcode, int operand) {
+        operands.add(size);
+        emit(opcode, 1);
+        emit(operand, 0);
+    }
+
+    // Remove the last value from the operands, returns its start
+    private int pop() {
+        return operands.remove(operands.size() - 1);
+    }
+
+    // Append an operator over the last count values (with its operand, unless it is negative). The operator is
+    // folded into a constant if the values are all constants, otherwise its value may be shared (see share).
+    private void apply(int opcode, int count, int operand) {
+        int first = operands.size() - count;
+        int start = operands.get(first);
+        Double folded = fold(opcode, first, operand);
+        operands.subList(first, operands.size()).clear();
+        if (folded != null) {
+            size = start; // Replace the constants with their result
+            depth -= count;
+            numbers.add(folded);
+            push(CONST, numbers.size() - 1);
+            return;
+        }
+        emit(opcode, 1 - count);
+        if (operand >= 0) emit(operand, 0);
+        operands.add(start);
+        share(start);
+    }
+
+    // The result of an operator over the values operands[first..] if they are all constants, null if they are not
+    // (or the operator fails, e.g., a division by zero, which is reported when the formula is evaluated)
+    private Double fold(int opcode, int first, int operand) {
+        double[] args = new double[operands.size() - first];
+        for (int i = 0; i < args.length; i++) {
+            int start = operands.get(first + i);
+            int end = first + i + 1 < operands.size() ? operands.get(first + i + 1) : size;
+            if (end - start != 2 || code[start] != CONST) return null;
+            args[i] = numbers.get(code[start + 1]);
+        }
+        switch (opcode) {
+            case ADD:
+                return args[0] + args[1];
+            case SUB:
+                return args[0] - args[1];
+            case MUL:
+                return args[0] * args[1];
+            case DIV:
+                return args[1] == 0 ? null : args[0] / args[1];
+            case NEG:
+                return -args[0];
+            case SIN:
+                return Math.sin(args[0]);
+            case COS:
+                return Math.cos(args[0]);
+            case POW:
+                return Math.pow(args[0], args[1]);
+            case COUNTED:
+                return 1.0;
+            case MIN:
+            case MAX: {
+                double result = args[0];
+                for (int i = 1; i < args.length; i++) {
+                    result = opcode == MIN ? Math.min(result, args[i]) : Math.max(result, args[i]);
+                }
+                return result;
+            }
+            default:
+                return null; // AVG (of values, always with its count) is not worth it
+        }
+    }
+
+    // Wrap the value computed by code[start..size) (see SHARED) if other formulas may compute it as well: it reads
+    // references, has no conditions, and is neither too small to be worth a lookup nor too large to be repeated
+    private void share(int start) {
+        if (size - start < MIN_SHARED || size - start > MAX_SHARED) return;
+        StringBuilder key = new StringBuilder();
+        boolean references = false;
+        for (int pc = start; pc < size; pc += length(code[pc])) {
+            int opcode = code[pc];
+            switch (opcode) {
+                case JUMP:
+                case JUMP_IF_ZERO:
+                    return;
+                case SHARED:
+                case SHARE:
+                    continue; // The nested subexpressions are part of the key anyway
+                case CONST:
+                    key.append('#').append(numbers.get(code[pc + 1]));
+                    break;
+                case REF: {
+                    int ref = code[pc + 1];
+                    key.append(refNames.get(ref) == null ? "" : refNames.get(ref)).append('!').append(refCells.get(ref));
+                    references = true;
+                    break;
+                }
+                case RANGE_SUM:
+                case RANGE_COUNT:
+                case RANGE_MIN:
+                case RANGE_MAX: {
+                    int range = code[pc + 1];
+                    key.append(opcode).append(rangeNames.get(range) == null ? "" : rangeNames.get(range))
+                            .append('!').append(Arrays.toString(ranges.get(range)));
+                    references = true;
+                    break;
+                }
+                default:
+                    key.append(opcode);
+                    if (length(opcode) == 2) key.append(':').append(code[pc + 1]);
+            }
+            key.append(' ');
+        }
+        if (!references) return;
+
+        int k = keys.size();
+        keys.add(key.toString());
+        emit(SHARE, 0);
+        emit(k, 0);
+        emit(0, 0); // Room for the SHARED header
+        emit(0, 0);
+        emit(0, 0);
+        System.arraycopy(code, start, code, start + 3, size - 3 - start);
+        for (int pc = start + 3; pc < size; pc += length(code[pc])) {
+            if (code[pc] == SHARED) code[pc + 2] += 3; // A nested subexpression, moved as well
+        }
+        code[start] = SHARED;
+        code[start + 1] = k;
+        code[start + 2] = size;
+    }
+
+    // Number of words of an instruction (its opcode and operands)
+    private static int length(int opcode) {
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NEG:
+            case SIN:
+            case COS:
+            case POW:
+            case COUNTED:
+                return 1;
+            case SHARED:
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    // Append a word to the program, tracking the depth of the operand stack
+    private void emit(int word, int stackChange) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = word;
+        depth += stackChange;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void expect(char c) {
+        skipSpaces();
+        if (peek() != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+        }
+        pos++;
+    }
+
+    private void skipSpaces() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+    }
+
+    // The current character, or 0 at the end of the formula
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+}
@@ -0,0 +1,189 @@
+package Code;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Compiles the postfix program of a hot formula (see Formula.evaluate and Ex2Sheet.setCompileThreshold) into a
+// tree of method handles, one per instruction, without a stack nor a dispatch loop. The tree reads the bound
+// reference values straight from the slots of the EvaluationContext: its type is (double[] slots, int values)
+// double, like Formula.run, and the JIT compiles the combined handles without the dispatch of the interpreter.
+// Only the programs of arithmetic, functions and conditions are compiled, the ranges and AVG stay interpreted.
+final class FormulaCompiler {
+    private static final MethodType TREE = MethodType.methodType(double.class, double[].class, int.class);
+    private static final int MAX_CODE = 256; // Longer programs would nest too many handles
+
+    private static final MethodHandle ADD, SUB, MUL, DIV, NEG, SIN, COS, POW, MIN, MAX, ONE, NON_ZERO, SLOT, OFFSET;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType unary = MethodType.methodType(double.class, double.class);
+            MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+            ADD = lookup.findStatic(FormulaCompiler.class, "add", binary);
+            SUB = lookup.findStatic(FormulaCompiler.class, "sub", binary);
+            MUL = lookup.findStatic(FormulaCompiler.class, "mul", binary);
+            DIV = lookup.findStatic(FormulaCompiler.class, "div", binary);
+            NEG = lookup.findStatic(FormulaCompiler.class, "neg", unary);
+            ONE = lookup.findStatic(FormulaCompiler.class, "one", unary);
+            SIN = lookup.findStatic(Math.class, "sin", unary);
+            COS = lookup.findStatic(Math.class, "cos", unary);
+            POW = lookup.findStatic(Math.class, "pow", binary);
+            MIN = lookup.findStatic(Math.class, "min", binary);
+            MAX = lookup.findStatic(Math.class, "max", binary);
+            NON_ZERO = lookup.findStatic(FormulaCompiler.class, "nonZero",
+                    MethodType.methodType(boolean.class, double.class));
+            OFFSET = lookup.findStatic(FormulaCompiler.class, "offset",
+                    MethodType.methodType(int.class, int.class, int.class));
+            SLOT = MethodHandles.arrayElementGetter(double[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private FormulaCompiler() {
+    }
+
+    // The tree of the program (with the given constants), null if it can not be compiled
+    static MethodHandle compile(int[] code, double[] constants) {
+        if (code == null || code.length > MAX_CODE) return null;
+        return compile(code, constants, 0, code.length);
+    }
+
+    // The tree of the instructions [from, to), which must leave exactly one value, null if it can not be compiled
+    private static MethodHandle compile(int[] code, double[] constants, int from, int to) {
+        Deque<MethodHandle> stack = new ArrayDeque<>();
+        int pc = from;
+        while (pc < to) {
+            switch (code[pc++]) {
+                case Formula.CONST:
+                    stack.push(MethodHandles.dropArguments(
+                            MethodHandles.constant(double.class, constants[code[pc++]]), 0, double[].class, int.class));
+                    break;
+                case Formula.REF: // slots[values + i]
+                    stack.push(MethodHandles.filterArguments(SLOT, 1, MethodHandles.insertArguments(OFFSET, 1, code[pc++])));
+                    break;
+                case Formula.ADD:
+                    binary(stack, ADD);
+                    break;
+                case Formula.SUB:
+                    binary(stack, SUB);
+                    break;
+                case Formula.MUL:
+                    binary(stack, MUL);
+                    break;
+                case Formula.DIV:
+                    binary(stack, DIV);
+                    break;
+                case Formula.POW:
+                    binary(stack, POW);
+                    break;
+                case Formula.NEG:
+                    stack.push(MethodHandles.filterReturnValue(stack.pop(), NEG));
+                    break;
+                case Formula.SIN:
+                    stack.push(MethodHandles.filterReturnValue(stack.pop(), SIN));
+                    break;
+                case Formula.COS:
+                    stack.push(MethodHandles.filterReturnValue(stack.pop(), COS));
+                    break;
+                case Formula.COUNTED: // The value is still computed, for its errors
+                    stack.push(MethodHandles.filterReturnValue(stack.pop(), ONE));
+                    break;
+                case Formula.MIN:
+                case Formula.MAX: {
+                    MethodHandle op = code[pc - 1] == Formula.MIN ? MIN : MAX;
+                    MethodHandle[] args = new MethodHandle[code[pc++]];
+                    for (int j = args.length - 1; j >= 0; j--) {
+                        args[j] = stack.pop();
+                    }
+                    MethodHandle result = args[0];
+                    for (int j = 1; j < args.length; j++) {
+                        result = combine(op, result, args[j]); // From the left, as Formula.run
+                    }
+                    stack.push(result);
+                    break;
+                }
+                case Formula.JUMP_IF_ZERO: { // cond JUMP_IF_ZERO else; then JUMP end; else
+                    int elseStart = code[pc++];
+                    int end = code[elseStart - 1];
+                    MethodHandle then = compile(code, constants, pc, elseStart - 2);
+                    MethodHandle otherwise = compile(code, constants, elseStart, end);
+                    if (then == null || otherwise == null) return null;
+                    MethodHandle test = MethodHandles.filterReturnValue(stack.pop(), NON_ZERO);
+                    stack.push(MethodHandles.guardWithTest(test, then, otherwise));
+                    pc = end;
+                    break;
+                }
+                case Formula.SHARED: // Computed by the tree, without the cache of run
+                    pc += 2;
+                    break;
+                case Formula.SHARE:
+                    pc++;
+                    break;
+                default:
+                    return null; // Ranges and AVG
+            }
+        }
+        return stack.size() == 1 ? stack.pop() : null;
+    }
+
+    private static void binary(Deque<MethodHandle> stack, MethodHandle op) {
+        MethodHandle b = stack.pop(), a = stack.pop();
+        stack.push(combine(op, a, b));
+    }
+
+    // The tree of op(a(slots, values), b(slots, values))
+    private static MethodHandle combine(MethodHandle op, MethodHandle a, MethodHandle b) {
+        MethodHandle both = MethodHandles.collectArguments(MethodHandles.collectArguments(op, 0, a), 2, b);
+        return MethodHandles.permuteArguments(both, TREE, 0, 1, 0, 1);
+    }
+
+    // Run a tree over the reference values bound at slots[values..]
+    static double invoke(MethodHandle tree, double[] slots, int values) {
+        try {
+            return (double) tree.invokeExact(slots, values);
+        } catch (RuntimeException | Error e) {
+            throw e; // A division by zero is an error of the formula, as in Formula.run
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double sub(double a, double b) {
+        return a - b;
+    }
+
+    private static double mul(double a, double b) {
+        return a * b;
+    }
+
+    private static double div(double a, double b) {
+        if (b == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        return a / b;
+    }
+
+    private static double neg(double a) {
+        return -a;
+    }
+
+    private static double one(double a) {
+        return 1;
+    }
+
+    private static boolean nonZero(double a) {
+        return a != 0;
+    }
+
+    private static int offset(int values, int i) {
+        return values + i;
+    }
+}
@@ -0,0 +1,61 @@
+package Code;
+
+import java.util.Arrays;
+
+// An open addressing hash map from long keys to non-negative int values, without boxing (no removal)
+class LongIntMap {
+    private long[] keys = new long[16];
+    private int[] values = new int[16]; // -1 for a free slot
+    private int size;
+
+    LongIntMap() {
+        Arrays.fill(values, -1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // The value of the key, or -1 if it is absent
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return -1;
+    }
+
+    // Map the key to the (non-negative) value
+    void put(long key, int value) {
+        if (2 * (size + 1) > keys.length) grow(); // Keep the table at most half full
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] >= 0) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, -1);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] >= 0) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Spread the packed coordinates
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,282 @@
+package Code;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+// A CellStore keeping the state of its cells outside of the Java heap, for very large sheets: the cells are
+// split into chunks as in ChunkedCellStore, and each chunk is a direct buffer holding one column per field
+// (computed value, data, order, type, flags). Texts (and the data of formulas) are kept in an off-heap arena,
+// while the numbers written in their canonical form ("5", "2.5") are kept as doubles, without any text.
+// The cells are views created on demand (see get), only the compiled formulas live on the heap.
+class OffHeapCellStore implements CellStore {
+    private static final int CHUNK_BITS = ChunkedCellStore.CHUNK_BITS;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int CELLS = 1 << (2 * CHUNK_BITS); // Cells per chunk
+
+    // The columns of a chunk, at these offsets of its buffer
+    private static final int VALUES = 0; // double: the computed value
+    private static final int DATA = VALUES + 8 * CELLS; // long: the text in the arena, or the bits of the number
+    private static final int LENGTHS = DATA + 8 * CELLS; // int: the length of the text, or one of the markers below
+    private static final int ORDERS = LENGTHS + 4 * CELLS; // int
+    private static final int TYPES = ORDERS + 4 * CELLS; // byte
+    private static final int FLAGS = TYPES + CELLS; // byte
+    private static final int CHUNK_BYTES = FLAGS + CELLS;
+
+    private static final int DOUBLE_NUMBER = -1, LONG_NUMBER = -2; // The data is the number, in Double/Long.toString form
+    private static final byte PRESENT = 1, DIRTY = 2; // Flags
+
+    private final int width, height;
+    private final int chunkRows;
+    private final Chunk[] chunks; // Chunk (cx, cy) at [cx * chunkRows + cy], null until written
+    private TextArena texts = new TextArena();
+
+    private static final class Chunk {
+        final ByteBuffer data = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.nativeOrder());
+        Formula[] formulas; // The compiled formulas (allocated with the first formula of the chunk)
+    }
+
+    OffHeapCellStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        chunkRows = (height + CHUNK_MASK) >>> CHUNK_BITS;
+        int chunkColumns = (width + CHUNK_MASK) >>> CHUNK_BITS;
+        chunks = new Chunk[Math.multiplyExact(chunkColumns, chunkRows)];
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public CellStore newStore(int width, int height) {
+        return new OffHeapCellStore(width, height);
+    }
+
+    @Override
+    public SCell get(int x, int y) {
+        Chunk chunk = chunks[(x >>> CHUNK_BITS) * chunkRows + (y >>> CHUNK_BITS)];
+        int slot = ((x & CHUNK_MASK) << CHUNK_BITS) | (y & CHUNK_MASK);
+        if (chunk == null || (chunk.data.get(FLAGS + slot) & PRESENT) == 0) {
+            return null;
+        }
+        return new View(chunk, slot);
+    }
+
+    @Override
+    public SCell getOrCreate(int x, int y) {
+        int c = (x >>> CHUNK_BITS) * chunkRows + (y >>> CHUNK_BITS);
+        if (chunks[c] == null) {
+            chunks[c] = new Chunk();
+        }
+        int slot = ((x & CHUNK_MASK) << CHUNK_BITS) | (y & CHUNK_MASK);
+        View cell = new View(chunks[c], slot);
+        if ((chunks[c].data.get(FLAGS + slot) & PRESENT) == 0) {
+            chunks[c].data.put(FLAGS + slot, PRESENT);
+            cell.setData("");
+        }
+        return cell;
+    }
+
+    @Override
+    public void forEach(int x1, int y1, int x2, int y2, CellVisitor visitor) {
+        for (int cx = x1 >>> CHUNK_BITS; cx <= x2 >>> CHUNK_BITS; cx++) {
+            for (int cy = y1 >>> CHUNK_BITS; cy <= y2 >>> CHUNK_BITS; cy++) {
+                Chunk chunk = chunks[cx * chunkRows + cy];
+                if (chunk == null) continue; // Nothing was written there
+                int fromX = Math.max(x1, cx << CHUNK_BITS), toX = Math.min(x2, (cx << CHUNK_BITS) + CHUNK_MASK);
+                int fromY = Math.max(y1, cy << CHUNK_BITS), toY = Math.min(y2, (cy << CHUNK_BITS) + CHUNK_MASK);
+                for (int x = fromX; x <= toX; x++) {
+                    int base = (x & CHUNK_MASK) << CHUNK_BITS;
+                    for (int y = fromY; y <= toY; y++) {
+                        int slot = base | (y & CHUNK_MASK);
+                        if ((chunk.data.get(FLAGS + slot) & PRESENT) != 0) visitor.visit(x, y, new View(chunk, slot));
+                    }
+                }
+            }
+        }
+    }
+
+    // Copy the live texts to a new arena once most of the arena holds replaced texts
+    private void compactTexts() {
+        TextArena compacted = new TextArena();
+        for (Chunk chunk : chunks) {
+            if (chunk == null) continue;
+            for (int slot = 0; slot < CELLS; slot++) {
+                int length = chunk.data.getInt(LENGTHS + 4 * slot);
+                if ((chunk.data.get(FLAGS + slot) & PRESENT) != 0 && length > 0) {
+                    long ref = chunk.data.getLong(DATA + 8 * slot);
+                    chunk.data.putLong(DATA + 8 * slot, compacted.put(texts.get(ref, length)));
+                }
+            }
+        }
+        texts = compacted;
+    }
+
+    // A cell of the store, reading and writing its chunk
+    private final class View extends SCell {
+        private final Chunk chunk;
+        private final int slot;
+
+        View(Chunk chunk, int slot) {
+            this.chunk = chunk;
+            this.slot = slot;
+        }
+
+        @Override
+        public double getValue() {
+            return chunk.data.getDouble(VALUES + 8 * slot);
+        }
+
+        @Override
+        public void setValue(double value) {
+            chunk.data.putDouble(VALUES + 8 * slot, value);
+            chunk.data.put(FLAGS + slot, PRESENT); // Clean
+        }
+
+        @Override
+        public boolean isDirty() {
+            return (chunk.data.get(FLAGS + slot) & DIRTY) != 0;
+        }
+
+        @Override
+        public void setDirty() {
+            chunk.data.put(FLAGS + slot, (byte) (PRESENT | DIRTY));
+        }
+
+        @Override
+        public int getOrder() {
+            return chunk.data.getInt(ORDERS + 4 * slot);
+        }
+
+        @Override
+        public void setOrder(int order) {
+            chunk.data.putInt(ORDERS + 4 * slot, order);
+        }
+
+        @Override
+        public int getType() {
+            return chunk.data.get(TYPES + slot);
+        }
+
+        @Override
+        public void setType(int type) {
+            chunk.data.put(TYPES + slot, (byte) type);
+        }
+
+        @Override
+        public String getData() {
+            int length = chunk.data.getInt(LENGTHS + 4 * slot);
+            long data = chunk.data.getLong(DATA + 8 * slot);
+            if (length == DOUBLE_NUMBER) return Double.toString(Double.longBitsToDouble(data));
+            if (length == LONG_NUMBER) return Long.toString(data);
+            return length == 0 ? "" : texts.get(data, length);
+        }
+
+        @Override
+        public void setData(String content) {
+            int oldLength = chunk.data.getInt(LENGTHS + 4 * slot);
+            if (oldLength > 0) {
+                texts.release(oldLength);
+            }
+
+            int type = typeOf(content);
+            int length = content.length();
+            long data = 0;
+            if (type == Ex2Utils.NUMBER && isLong(content)) {
+                length = LONG_NUMBER;
+                data = Long.parseLong(content);
+            } else if (type == Ex2Utils.NUMBER && Double.toString(Double.parseDouble(content)).equals(content)) {
+                length = DOUBLE_NUMBER;
+                data = Double.doubleToRawLongBits(Double.parseDouble(content));
+            } else if (length > 0) {
+                data = texts.put(content);
+            }
+            chunk.data.putLong(DATA + 8 * slot, data);
+            chunk.data.putInt(LENGTHS + 4 * slot, length);
+            chunk.data.put(TYPES + slot, (byte) type);
+            chunk.data.put(FLAGS + slot, (byte) (PRESENT | DIRTY));
+
+            if (type == Ex2Utils.FORM) {
+                if (chunk.formulas == null) chunk.formulas = new Formula[CELLS];
+                chunk.formulas[slot] = new Formula(content); // Parse once, evaluated many times
+            } else if (chunk.formulas != null) {
+                chunk.formulas[slot] = null;
+            }
+
+            if (texts.wasted() > (1 << 20) && texts.wasted() > texts.used() / 2) {
+                compactTexts();
+            }
+        }
+
+        @Override
+        Formula getFormula() {
+            return chunk.formulas == null ? null : chunk.formulas[slot];
+        }
+    }
+
+    // Whether the data is a number written as Long.toString writes it
+    private static boolean isLong(String content) {
+        int start = content.startsWith("-") ? 1 : 0;
+        if (content.length() == start || content.length() - start > 18) return false; // Empty, or may overflow
+        if (content.length() - start > 1 && content.charAt(start) == '0') return false; // Leading zero
+        if (start == 1 && content.equals("-0")) return false; // -0.0 as a double
+        for (int i = start; i < content.length(); i++) {
+            if (content.charAt(i) < '0' || content.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    // Append-only pages of UTF-16 text outside of the heap. A text is referenced by (page << 32) | offset, and
+    // its length is kept by the cell. Replaced texts are only counted, the store compacts the arena.
+    private static final class TextArena {
+        private static final int PAGE_BYTES = 1 << 20;
+
+        private final List<ByteBuffer> pages = new ArrayList<>();
+        private ByteBuffer current; // The page being filled
+        private long used, wasted; // In chars
+
+        long put(String text) {
+            int bytes = 2 * text.length();
+            if (current == null || current.remaining() < bytes) {
+                current = ByteBuffer.allocateDirect(Math.max(PAGE_BYTES, bytes)).order(ByteOrder.nativeOrder());
+                pages.add(current);
+            }
+            long ref = ((long) (pages.size() - 1) << 32) | current.position();
+            for (int i = 0; i < text.length(); i++) {
+                current.putChar(text.charAt(i));
+            }
+            used += text.length();
+            return ref;
+        }
+
+        String get(long ref, int length) {
+            ByteBuffer page = pages.get((int) (ref >>> 32));
+            int offset = (int) ref;
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = page.getChar(offset + 2 * i);
+            }
+            return new String(chars);
+        }
+
+        void release(int length) {
+            wasted += length;
+        }
+
+        long used() {
+            return used;
+        }
+
+        long wasted() {
+            return wasted;
+        }
+    }
+}
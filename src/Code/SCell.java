@@ -1,32 +1,51 @@
 package Code;
 
-import net.objecthunter.exp4j.Expression;
-import net.objecthunter.exp4j.ExpressionBuilder;
+public class SCell implements Cell {
+    // The cell of every empty (never written) coordinate of a sheet, shared and immutable: write with Sheet.set
+    public static final SCell EMPTY;
 
-import java.util.HashMap;
-import java.util.Map;
+    static {
+        SCell empty = new SCell("");
+        empty.setValue(0); // Clean
+        EMPTY = empty.frozenCopy();
+    }
 
-public class SCell implements Cell {
     private String content;
     private int type;
     private int order;
-    private boolean visited = false;
-    private final Map<String, Double> variables;
+    private Formula formula; // The compiled formula, null unless the data is a formula
+    private double value; // The last computed value of this cell (meaningful for numbers and valid formulas)
+    private volatile boolean dirty = true; // True if the value has to be recomputed (written after the value, see setValue)
+    private int epoch; // The epoch of the store holding this cell (see ChunkedCellStore)
 
     // Constructor
     public SCell(String content) {
-        this.variables = new HashMap<>();
         setData(content);
     }
 
-    // Getter for visited state
-    public boolean isVisit() {
-        return visited;
+    // Constructor of the cells keeping their state elsewhere (see OffHeapCellStore), which override the accessors
+    SCell() {
+    }
+
+    // Getter for the last computed value
+    public double getValue() {
+        return value;
+    }
+
+    // Store a freshly computed value, the cell is clean until its data (or one of its references) changes
+    public void setValue(double value) {
+        this.value = value;
+        this.dirty = false;
+    }
+
+    // Getter for the dirty state
+    public boolean isDirty() {
+        return dirty;
     }
 
-    // Setter for visited state
-    public void setVisit(boolean visited) {
-        this.visited = visited;
+    // Mark the value of this cell as outdated
+    public void setDirty() {
+        this.dirty = true;
     }
 
     @Override
@@ -47,16 +66,26 @@ public class SCell implements Cell {
     @Override
     public void setData(String content) {
         this.content = content;
+        this.dirty = true;
+        this.type = typeOf(content);
+        this.formula = type == Ex2Utils.FORM ? new Formula(content) : null; // Parse once, evaluated many times
+    }
 
+    // The type of the given data: FORM, NUMBER or TEXT
+    static int typeOf(String content) {
         if (content.startsWith("=")) {
-            this.type = Ex2Utils.FORM;
-        } else {
-            try {
-                Double.parseDouble(content);
-                this.type = Ex2Utils.NUMBER;
-            } catch (NumberFormatException e) {
-                this.type = Ex2Utils.TEXT;
-            }
+            return Ex2Utils.FORM;
+        }
+        int start = 0;
+        while (start < content.length() && content.charAt(start) <= ' ') start++; // As parseDouble trims
+        if (start == content.length() || "0123456789+-.NI".indexOf(content.charAt(start)) < 0) {
+            return Ex2Utils.TEXT; // Can not be a number, no need for the exception of parseDouble
+        }
+        try {
+            Double.parseDouble(content);
+            return Ex2Utils.NUMBER;
+        } catch (NumberFormatException e) {
+            return Ex2Utils.TEXT;
         }
     }
 
@@ -77,9 +106,9 @@ public class SCell implements Cell {
 
     // Evaluates the value of the cell based on its type
     public double evaluate(Ex2Sheet sheet, SCell currentCell) {
-        switch (type) {
+        switch (getType()) {
             case Ex2Utils.NUMBER:
-                return Double.parseDouble(content);
+                return Double.parseDouble(getData());
 
             case Ex2Utils.FORM:
             case Ex2Utils.ERR_FORM_FORMAT:
@@ -92,44 +121,69 @@ public class SCell implements Cell {
         }
     }
 
+    // A copy of this cell, sharing its compiled formula (see ChunkedCellStore)
+    SCell copy() {
+        return copyTo(new SCell());
+    }
+
+    // An immutable copy of this cell (see EMPTY and Ex2Sheet.snapshot)
+    SCell frozenCopy() {
+        return copyTo(new FrozenCell());
+    }
+
+    private SCell copyTo(SCell copy) {
+        copy.content = content;
+        copy.type = type;
+        copy.order = order;
+        copy.formula = formula;
+        copy.value = value;
+        copy.dirty = dirty;
+        return copy;
+    }
+
+    int getEpoch() {
+        return epoch;
+    }
+
+    void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    // Returns the compiled formula of this cell (null if it is not a formula)
+    Formula getFormula() {
+        return formula;
+    }
+
     // Helper method to evaluate formulas
     private double evaluateFormula(Ex2Sheet sheet, SCell currentCell) {
-        try {
-            String formula = content.substring(1).toUpperCase(); // Remove '=' and convert to uppercase
-            variables.clear();
-
-            for (String variable : formula.split("[^A-Za-z0-9]")) {
-                if (variable.matches("[A-Za-z]+[0-9]+")) { // Valid cell reference
-                    int[] coords = sheet.cellCoordinates(variable);
-
-                    if (!sheet.isIn(coords[0], coords[1])) {
-                        currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
-                        throw new IllegalArgumentException("Invalid reference: " + variable);
-                    }
-
-                    String refValue = sheet.eval(coords[0], coords[1]);
-                    SCell referencedCell = sheet.get(coords[0], coords[1]);
-
-                    if (referencedCell.getType() == Ex2Utils.ERR_CYCLE_FORM) {
-                        currentCell.setType(Ex2Utils.ERR_CYCLE_FORM);
-                        return Ex2Utils.ERR_CYCLE_FORM;
-                    }
-
-                    currentCell.setType(Ex2Utils.FORM);
-                    variables.put(variable, Double.parseDouble(refValue));
-                }
-            }
-
-            // Build and evaluate the expression
-            Expression expression = new ExpressionBuilder(formula)
-                    .variables(variables.keySet())
-                    .build();
-
-            variables.forEach(expression::setVariable);
-            return expression.evaluate();
-        } catch (Exception e) {
-            currentCell.setType(Ex2Utils.ERR_FORM_FORMAT);
-            return Ex2Utils.ERR_FORM_FORMAT;
+        return getFormula().evaluate(sheet, currentCell);
+    }
+
+    // A cell which can not be modified, see frozenCopy
+    private static final class FrozenCell extends SCell {
+        @Override
+        public void setData(String content) {
+            throw new UnsupportedOperationException("This cell can not be modified, use Sheet.set");
+        }
+
+        @Override
+        public void setType(int type) {
+            throw new UnsupportedOperationException("This cell can not be modified, use Sheet.set");
+        }
+
+        @Override
+        public void setOrder(int order) {
+            throw new UnsupportedOperationException("This cell can not be modified, use Sheet.set");
+        }
+
+        @Override
+        public void setValue(double value) {
+            throw new UnsupportedOperationException("This cell can not be modified, use Sheet.set");
+        }
+
+        @Override
+        public void setDirty() {
+            throw new UnsupportedOperationException("This cell can not be modified, use Sheet.set");
         }
     }
 }
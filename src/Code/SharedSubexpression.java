@@ -0,0 +1,40 @@
+package Code;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A subexpression appearing in several formulas of a sheet (e.g., the "A0+B0" of "=(A0+B0)*C1" and "=(A0+B0)/D1"),
+// identified by its text with absolute references (see Formula.sharedKey). The sheet keeps one node per distinct
+// subexpression, used by all of its formulas (see Ex2Sheet.share), and the first formula computing it in a
+// recalculation caches its value for the others. A new recalculation (which invalidates all the nodes) is started
+// whenever the values read by the subexpressions may change: by each recalculation pass of a sheet, before the
+// dependents in other sheets of a workbook are recomputed, and before each member of a cycle is iterated.
+final class SharedSubexpression {
+    private static final AtomicLong recalculations = new AtomicLong(); // Of any sheet, see nextRecalculation
+
+    int users; // Number of formulas of the sheet using it (modified by the thread modifying the sheet)
+    private double value;
+    private volatile long recalculation = -1; // The recalculation of the cached value (written after the value)
+
+    // Start a recalculation, whose values may differ from the cached ones (of any sheet: in a workbook, a
+    // recalculation of one sheet also recomputes the formulas of the others)
+    static void nextRecalculation() {
+        recalculations.incrementAndGet();
+    }
+
+    // Whether the value was computed by the current recalculation
+    boolean isCurrent() {
+        return users > 1 && recalculation == recalculations.get();
+    }
+
+    double value() {
+        return value;
+    }
+
+    // Cache the value, computed by the current recalculation, for the other formulas
+    void store(double value) {
+        if (users > 1) {
+            this.value = value;
+            recalculation = recalculations.get();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package Code;
+
+import java.io.IOException;
+
+// An immutable view of an Ex2Sheet as it was when the snapshot was taken (see Ex2Sheet.snapshot). It holds the
+// computed values of the cells, so it is read without any evaluation, and it can not be modified.
+class SheetSnapshot implements Sheet {
+    private final CellStore cells; // A frozen store (see CellStore.snapshot)
+
+    SheetSnapshot(CellStore cells) {
+        this.cells = cells;
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return Ex2Sheet.isIn(cells, x, y);
+    }
+
+    @Override
+    public int width() {
+        return cells.width();
+    }
+
+    @Override
+    public int height() {
+        return cells.height();
+    }
+
+    @Override
+    public void set(int x, int y, String c) {
+        throw new UnsupportedOperationException("A snapshot can not be modified");
+    }
+
+    // An immutable copy of the cell at (x, y)
+    @Override
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) return null;
+        SCell cell = cells.get(x, y);
+        return cell == null ? SCell.EMPTY : cell.frozenCopy();
+    }
+
+    @Override
+    public Cell get(String entry) {
+        if (entry == null) return null;
+        long packed = CellEntry.parse(entry, 0, entry.length());
+        return packed < 0 ? null : get(CellEntry.packedX(packed), CellEntry.packedY(packed));
+    }
+
+    @Override
+    public String value(int x, int y) {
+        return eval(x, y);
+    }
+
+    // Nothing to do, the values were computed by the sheet before the snapshot was taken
+    @Override
+    public void eval() {
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        SCell cell = isIn(x, y) ? cells.get(x, y) : null;
+        return cell == null ? Ex2Utils.EMPTY_CELL : Ex2Sheet.format(cell);
+    }
+
+    // The depths are computed from the formulas of the snapshot (the sheet may have changed its own graph since),
+    // leaving out the references to the other sheets of a workbook
+    @Override
+    public int[][] depth() {
+        DependencyGraph dependencies = new DependencyGraph();
+        cells.forEach((x, y, cell) -> {
+            if (cell.getFormula() != null) {
+                dependencies.setReferences(((long) x << 32) | y, Ex2Sheet.references(cells, x, y, null));
+            }
+        });
+        return Ex2Sheet.depth(dependencies, 0, width(), height());
+    }
+
+    @Override
+    public void load(String fileName) throws IOException {
+        throw new UnsupportedOperationException("A snapshot can not be modified");
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        Ex2Sheet.save(cells, fileName);
+    }
+}
@@ -0,0 +1,158 @@
+package Code;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Many sheets whose formulas may reference each other by name (e.g., "=SHEET2!B3*2" or "=sum(DATA!A0:A9)",
+// the names are case insensitive). The sheets share one dependency graph, keyed by the index of the sheet and the
+// coordinates of the cell (see Ex2Sheet.key), so an edit of one sheet only reevaluates its dependents, in any
+// sheet, instead of the whole workbook. eval() evaluates the sheets which do not depend on each other in parallel.
+public class Workbook {
+    private static final int MAX_SHEETS = 128; // The index of a sheet is kept in 7 bits of the keys
+
+    private final DependencyGraph dependencies = new DependencyGraph(); // Shared by all the sheets
+    private final List<Ex2Sheet> sheets = new ArrayList<>(); // By index
+    private final List<String> names = new ArrayList<>(); // The name of each sheet, as given
+    private final Map<String, Ex2Sheet> byName = new HashMap<>(); // By upper case name
+    private ForkJoinPool pool = ForkJoinPool.commonPool(); // Evaluates the independent sheets, null for sequential
+
+    // Add an empty sheet with the given name (letters, digits and '_', starting with a letter) and dimensions
+    public Ex2Sheet addSheet(String name, int width, int height) {
+        if (name == null || !name.matches("[A-Za-z][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid sheet name " + name);
+        }
+        String key = name.toUpperCase();
+        if (byName.containsKey(key)) {
+            throw new IllegalArgumentException("There is already a sheet named " + name);
+        }
+        if (sheets.size() == MAX_SHEETS) {
+            throw new IllegalStateException("A workbook has at most " + MAX_SHEETS + " sheets");
+        }
+        Ex2Sheet sheet = new Ex2Sheet(new ChunkedCellStore(width, height), this, sheets.size(), dependencies);
+        sheets.add(sheet);
+        names.add(name);
+        byName.put(key, sheet);
+
+        boolean referenced = false; // The formulas naming the new sheet were errors so far
+        for (Ex2Sheet other : sheets) {
+            referenced |= other.refreshReferencesTo(key);
+        }
+        if (referenced) {
+            eval();
+        }
+        return sheet;
+    }
+
+    // The sheet with the given name (case insensitive), null if there is none
+    public Ex2Sheet sheet(String name) {
+        return byName.get(name.toUpperCase());
+    }
+
+    // The names of the sheets, in the order they were added
+    public List<String> names() {
+        return Collections.unmodifiableList(names);
+    }
+
+    // Enable (or with null, disable) the parallel evaluation of the independent sheets in eval()
+    public void setParallelism(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // The sheet with the given index
+    Ex2Sheet sheet(int index) {
+        return sheets.get(index);
+    }
+
+    List<Ex2Sheet> sheets() {
+        return sheets;
+    }
+
+    // A sheet was loaded: the ranges of the other sheets naming it may contain other cells
+    void sheetLoaded(Ex2Sheet sheet) {
+        String name = names.get(sheets.indexOf(sheet)).toUpperCase();
+        for (Ex2Sheet other : sheets) {
+            if (other != sheet) other.refreshReferencesTo(name);
+        }
+    }
+
+    // Evaluate all the sheets. The sheets are evaluated in waves: a wave holds the sheets whose references to
+    // other sheets were all evaluated by the previous waves, and its sheets are evaluated in parallel. When the
+    // remaining sheets reference each other (in a cycle of sheets, not necessarily of cells), they are evaluated
+    // together, level by level of the depth of their cells.
+    public void eval() {
+        for (Ex2Sheet sheet : sheets) {
+            sheet.refreshDependencies();
+        }
+        dependencies.levels(); // Analyzed once, before the sheets read the graph from several threads
+
+        int n = sheets.size();
+        boolean[][] uses = new boolean[n][n]; // uses[a][b]: a cell of sheet a references a cell of sheet b
+        for (int node = 0; node < dependencies.size(); node++) {
+            int a = Ex2Sheet.keySheet(dependencies.cell(node));
+            for (int ref : dependencies.references(node)) {
+                int b = Ex2Sheet.keySheet(dependencies.cell(ref));
+                if (a != b) uses[a][b] = true;
+            }
+        }
+
+        boolean[] done = new boolean[n];
+        List<Ex2Sheet> remaining = new ArrayList<>(sheets);
+        while (!remaining.isEmpty()) {
+            List<Ex2Sheet> wave = new ArrayList<>();
+            for (Ex2Sheet sheet : remaining) {
+                if (ready(uses[sheets.indexOf(sheet)], done)) wave.add(sheet);
+            }
+            if (wave.isEmpty()) break; // A cycle of sheets
+            evaluate(wave);
+            for (Ex2Sheet sheet : wave) {
+                done[sheets.indexOf(sheet)] = true;
+            }
+            remaining.removeAll(wave);
+        }
+
+        if (!remaining.isEmpty()) {
+            for (Ex2Sheet sheet : remaining) {
+                sheet.evalUnreferenced();
+            }
+            for (int depth = 0; depth < dependencies.levels(); depth++) {
+                for (Ex2Sheet sheet : remaining) {
+                    sheet.evalLevel(depth); // A level only reads the previous levels, of any sheet
+                }
+            }
+            boolean[] cyclic = new boolean[n];
+            for (Ex2Sheet sheet : remaining) {
+                cyclic[sheets.indexOf(sheet)] = true;
+            }
+            remaining.get(0).evalCycles(node -> cyclic[Ex2Sheet.keySheet(dependencies.cell(node))]); // Across sheets
+        }
+        for (Ex2Sheet sheet : sheets) {
+            sheet.publishSnapshot();
+        }
+    }
+
+    // Whether all the sheets used by a sheet are done
+    private static boolean ready(boolean[] uses, boolean[] done) {
+        for (int i = 0; i < uses.length; i++) {
+            if (uses[i] && !done[i]) return false;
+        }
+        return true;
+    }
+
+    // Evaluate the cells of the given (independent) sheets, in parallel if there is a pool
+    private void evaluate(List<Ex2Sheet> wave) {
+        if (pool == null || wave.size() == 1) {
+            for (Ex2Sheet sheet : wave) {
+                sheet.evalCells();
+            }
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Ex2Sheet sheet : wave) {
+            tasks.add(pool.submit(sheet::evalCells));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+}